@@ -15,14 +15,21 @@
  */
 package net.tirasa.connid.bundles.scimv11;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Predicate;
 import net.tirasa.connid.bundles.scimv11.dto.PagedResults;
 import net.tirasa.connid.bundles.scimv11.dto.User;
+import net.tirasa.connid.bundles.scimv11.service.FilterCapabilities;
+import net.tirasa.connid.bundles.scimv11.service.FilterRejectedException;
+import net.tirasa.connid.bundles.scimv11.service.NoSuchEntityException;
 import net.tirasa.connid.bundles.scimv11.service.SCIMv11Client;
+import net.tirasa.connid.bundles.scimv11.service.UserHandler;
 import net.tirasa.connid.bundles.scimv11.utils.SCIMv11Attributes;
 import net.tirasa.connid.bundles.scimv11.utils.SCIMv11Utils;
 import org.identityconnectors.common.StringUtil;
@@ -42,10 +49,12 @@ import org.identityconnectors.framework.common.objects.OperationalAttributes;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
 import org.identityconnectors.framework.common.objects.Schema;
 import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.SortKey;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
 import org.identityconnectors.framework.common.objects.filter.Filter;
 import org.identityconnectors.framework.common.objects.filter.FilterTranslator;
+import org.identityconnectors.framework.common.objects.filter.OrFilter;
 import org.identityconnectors.framework.spi.Configuration;
 import org.identityconnectors.framework.spi.Connector;
 import org.identityconnectors.framework.spi.ConnectorClass;
@@ -64,6 +73,11 @@ public class SCIMv11Connector implements
 
     private static final Log LOG = Log.getLog(SCIMv11Connector.class);
 
+    /**
+     * Separates, in paged results cookies, the index of the first sorted User from the key of sorted results kept.
+     */
+    private static final String SORTED_COOKIE_SEPARATOR = ":";
+
     private SCIMv11ConnectorConfiguration configuration;
 
     private Schema schema;
@@ -82,7 +96,7 @@ public class SCIMv11Connector implements
         this.configuration = (SCIMv11ConnectorConfiguration) configuration;
         this.configuration.validate();
 
-        client = new SCIMv11Client(this.configuration);
+        client = this.configuration.getClient();
 
         LOG.ok("Connector {0} successfully inited", getClass().getName());
     }
@@ -137,15 +151,29 @@ public class SCIMv11Connector implements
     public void executeQuery(ObjectClass objectClass, Filter query, ResultsHandler handler, OperationOptions options) {
         LOG.ok("Connector READ");
 
+        // lookup by id is run as direct read, any other filter is translated for the service to evaluate
         Attribute key = null;
         if (query instanceof EqualsFilter) {
             Attribute filterAttr = ((EqualsFilter) query).getAttribute();
-            if (filterAttr instanceof Uid
-                    || ObjectClass.ACCOUNT.equals(objectClass)
-                    || ObjectClass.GROUP.equals(objectClass)) {
+            if ((filterAttr.is(Uid.NAME) || filterAttr.is(SCIMv11Attributes.USER_ATTRIBUTE_ID))
+                    && AttributeUtil.getAsStringValue(filterAttr) != null) {
+
                 key = filterAttr;
             }
         }
+        // lookups by many ids or userNames are run in batches, unless results are to be sorted; so are the ones by
+        // single userName, which may then be resolved as lookups by id
+        List<String> userIds = null;
+        List<String> userNames = null;
+        if (options.getSortKeys() == null || options.getSortKeys().length == 0) {
+            if (query instanceof OrFilter) {
+                userIds = getLookupValues(query, Uid.NAME, SCIMv11Attributes.USER_ATTRIBUTE_ID);
+            }
+            if (userIds == null && (query instanceof OrFilter || query instanceof EqualsFilter)) {
+
+                userNames = getLookupValues(query, Name.NAME, SCIMv11Attributes.USER_ATTRIBUTE_USERNAME);
+            }
+        }
 
         Set<String> attributesToGet = new HashSet<>();
         if (options.getAttributesToGet() != null) {
@@ -153,39 +181,148 @@ public class SCIMv11Connector implements
         }
 
         if (ObjectClass.ACCOUNT.equals(objectClass)) {
-            if (key == null) {
-                List<User> users = null;
+            if (userIds != null || userNames != null) {
+                UserResultsHandler userHandler = new UserResultsHandler(handler, attributesToGet, null);
+                try {
+                    if (userIds == null && userNames.size() == 1) {
+                        client.getUsersByUserName(userNames.get(0), attributesToGet, userHandler);
+                    } else if (userIds == null) {
+                        client.getUsersByUserName(userNames, attributesToGet, userHandler);
+                    } else {
+                        client.getUsersById(userIds, attributesToGet, userHandler);
+                    }
+                } catch (Exception e) {
+                    SCIMv11Utils.wrapGeneralError("While getting Users!", e);
+                }
+
+                if (handler instanceof SearchResultsHandler) {
+                    ((SearchResultsHandler) handler).handleResult(new SearchResult(null, -1));
+                }
+            } else if (key == null) {
+                FilterCapabilities capabilities = client.getFilterCapabilities();
+                SCIMv11FilterPlanner.Plan plan =
+                        SCIMv11FilterPlanner.plan(query, client.getCustomSchema(), capabilities);
+
                 int remainingResults = -1;
                 int pagesSize = options.getPageSize() == null ? -1 : options.getPageSize();
                 String cookie = options.getPagedResultsCookie();
 
-                try {
-                    if (pagesSize != -1) {
-                        if (StringUtil.isNotBlank(cookie)) {
-                            PagedResults<User> pagedResult =
-                                    client.getAllUsers(Integer.valueOf(cookie), pagesSize, attributesToGet);
-                            users = pagedResult.getResources();
-
-                            cookie = users.size() >= pagesSize
-                                    ? String.valueOf(pagedResult.getStartIndex() + users.size())
-                                    : null;
-                        } else {
-                            PagedResults<User> pagedResult = client.getAllUsers(1, pagesSize, attributesToGet);
-                            users = pagedResult.getResources();
-
-                            cookie = users.size() >= pagesSize
-                                    ? String.valueOf(pagedResult.getStartIndex() + users.size())
-                                    : null;
+                // a single sort key is pushed to the service, if supported; otherwise all Users are sorted here
+                SortKey[] sortKeys = options.getSortKeys();
+                SortKey sortKey = null;
+                Set<String> sortAttributes = new HashSet<>();
+                if (sortKeys != null && sortKeys.length > 0) {
+                    String sortPath = sortKeys.length == 1 && client.isSortSupported()
+                            ? new SCIMv11FilterTranslator(client.getCustomSchema(), null).getSortPath(
+                                    sortKeys[0].getField())
+                            : null;
+                    if (sortPath == null) {
+                        for (SortKey field : sortKeys) {
+                            // operational attributes, as __UID__ and __NAME__, are always returned
+                            if (!attributesToGet.contains(field.getField())
+                                    && !AttributeUtil.isSpecialName(field.getField())) {
+
+                                sortAttributes.add(field.getField());
+                            }
                         }
                     } else {
-                        users = client.getAllUsers(attributesToGet);
+                        sortKey = new SortKey(sortPath, sortKeys[0].isAscendingOrder());
+                    }
+                }
+                boolean localSort = sortKeys != null && sortKeys.length > 0 && sortKey == null;
+
+                // attributes needed to sort locally are converted, but removed before being returned
+                Set<String> convertedAttributes = attributesToGet;
+                if (!sortAttributes.isEmpty()) {
+                    convertedAttributes = new HashSet<>(attributesToGet);
+                    convertedAttributes.addAll(sortAttributes);
+                }
+
+                // locally sorted results are kept between pages: the cookie is then the index of the first sorted
+                // User to return, followed by the key to take the sorted results back
+                int sortedIndex = 1;
+                SCIMv11ExternalSorter sorter = null;
+                boolean reused = false;
+                if (localSort) {
+                    int separator = cookie == null ? -1 : cookie.indexOf(SORTED_COOKIE_SEPARATOR);
+                    if (separator == -1) {
+                        sortedIndex = StringUtil.isNotBlank(cookie) ? Integer.valueOf(cookie) : 1;
+                    } else {
+                        sortedIndex = Integer.valueOf(cookie.substring(0, separator));
+                        sorter = configuration.getSortedResults().take(cookie.substring(separator + 1));
+                        reused = sorter != null;
+                    }
+                    if (reused) {
+                        LOG.ok("Replaying {0} sorted Users from {1}", sorter.getCount(), sortedIndex);
+                    } else {
+                        sorter = new SCIMv11ExternalSorter(sortKeys, configuration.getSortBufferSize());
                     }
-                } catch (Exception e) {
-                    SCIMv11Utils.wrapGeneralError("While getting Users!", e);
                 }
 
-                for (User user : users) {
-                    handler.handle(fromUser(user, attributesToGet));
+                try {
+                    boolean completed = reused;
+                    while (!completed) {
+                        String filterQuery = plan.getFilterQuery();
+
+                        // attributes needed to evaluate the residual filter are requested, but not returned
+                        Set<String> requestedAttributes = convertedAttributes;
+                        if (!plan.getResidualAttributes().isEmpty()) {
+                            requestedAttributes = new HashSet<>(convertedAttributes);
+                            requestedAttributes.addAll(plan.getResidualAttributes());
+                        }
+
+                        // each user is converted and handled as soon as read, while the rest of the page is still
+                        // arriving
+                        UserResultsHandler userHandler = new UserResultsHandler(
+                                sorter == null ? handler : sorter, convertedAttributes, plan.getResidual());
+
+                        try {
+                            if (pagesSize != -1 && sorter == null) {
+                                int startIndex = StringUtil.isNotBlank(cookie) ? Integer.valueOf(cookie) : 1;
+                                PagedResults<User> pagedResult = client.getAllUsers(
+                                        filterQuery, sortKey, startIndex, pagesSize, requestedAttributes, userHandler);
+
+                                // when the handler stops early, the cookie allows to resume from the first user not
+                                // read
+                                cookie = userHandler.isStopped() || userHandler.getRead() >= pagesSize
+                                        ? String.valueOf((pagedResult.getStartIndex() > 0
+                                                ? pagedResult.getStartIndex() : startIndex) + userHandler.getRead())
+                                        : null;
+                            } else {
+                                client.getAllUsers(filterQuery, sortKey, requestedAttributes, userHandler);
+                            }
+                            completed = true;
+                        } catch (FilterRejectedException e) {
+                            // the search is run again with a narrower filter expression, if anything could be learnt
+                            if (userHandler.getRead() > 0 || !learnRejectedFilter(plan, capabilities)) {
+                                SCIMv11Utils.wrapGeneralError("While getting Users!", e);
+                            }
+                            plan = SCIMv11FilterPlanner.plan(query, client.getCustomSchema(), capabilities);
+                        } catch (Exception e) {
+                            SCIMv11Utils.wrapGeneralError("While getting Users!", e);
+                        }
+                    }
+
+                    if (sorter != null) {
+                        SortedResultsHandler sortedHandler =
+                                new SortedResultsHandler(handler, sortAttributes, pagesSize);
+                        sorter.replay(sortedIndex - 1, sortedHandler);
+
+                        int next = sortedIndex + sortedHandler.getHandled();
+                        cookie = null;
+                        if (pagesSize != -1) {
+                            remainingResults = Math.max(0, sorter.getCount() - next + 1);
+                            if (next <= sorter.getCount()) {
+                                cookie = next + SORTED_COOKIE_SEPARATOR
+                                        + configuration.getSortedResults().put(sorter);
+                                sorter = null;
+                            }
+                        }
+                    }
+                } finally {
+                    if (sorter != null) {
+                        sorter.close();
+                    }
                 }
 
                 if (handler instanceof SearchResultsHandler) {
@@ -193,26 +330,14 @@ public class SCIMv11Connector implements
                 }
             } else {
                 User result = null;
-                if (Uid.NAME.equals(key.getName()) || SCIMv11Attributes.USER_ATTRIBUTE_ID.equals(key.getName())) {
-                    result = null;
-                    try {
-                        result = client.getUser(AttributeUtil.getAsStringValue(key));
-                    } catch (Exception e) {
-                        SCIMv11Utils.wrapGeneralError("While getting User : "
-                                + key.getName() + " - " + AttributeUtil.getAsStringValue(key), e);
-                    }
-                } else if (Name.NAME.equals(key.getName())) {
-                    try {
-                        List<User> users =
-                                client.getAllUsers("username eq \"" + AttributeUtil.getAsStringValue(key) + "\"",
-                                        attributesToGet);
-                        if (!users.isEmpty()) {
-                            result = users.get(0);
-                        }
-                    } catch (Exception e) {
-                        SCIMv11Utils.wrapGeneralError("While getting User : "
-                                + key.getName() + " - " + AttributeUtil.getAsStringValue(key), e);
-                    }
+                try {
+                    result = client.getUser(AttributeUtil.getAsStringValue(key), attributesToGet);
+                } catch (NoSuchEntityException e) {
+                    // no match, as for searches by userName
+                    LOG.ok("User {0} not found", AttributeUtil.getAsStringValue(key));
+                } catch (Exception e) {
+                    SCIMv11Utils.wrapGeneralError("While getting User : "
+                            + key.getName() + " - " + AttributeUtil.getAsStringValue(key), e);
                 }
                 if (result != null) {
                     handler.handle(fromUser(result, attributesToGet));
@@ -387,13 +512,20 @@ public class SCIMv11Connector implements
     }
 
     private ConnectorObject fromUser(final User user, final Set<String> attributesToGet) {
+        return fromUser(new SCIMv11FilterPlanner.Candidate(user), attributesToGet);
+    }
+
+    private ConnectorObject fromUser(
+            final SCIMv11FilterPlanner.Candidate candidate, final Set<String> attributesToGet) {
+
+        User user = candidate.getUser();
         ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
         builder.setObjectClass(ObjectClass.ACCOUNT);
         builder.setUid(user.getId());
         builder.setName(user.getUserName());
 
         try {
-            Set<Attribute> userAttributes = user.toAttributes();
+            Set<Attribute> userAttributes = candidate.getAttributes();
 
             for (Attribute toAttribute : userAttributes) {
                 String attributeName = toAttribute.getName();
@@ -419,4 +551,204 @@ public class SCIMv11Connector implements
         return builder.build();
     }
 
+    /**
+     * @param filter filter
+     * @param names attribute names
+     * @return values of the given filter, if it is a disjunction of equality conditions on any of the given
+     * attributes, else null
+     */
+    private static List<String> getLookupValues(final Filter filter, final String... names) {
+        List<String> values = new ArrayList<>();
+        return collectLookupValues(filter, names, values) ? values : null;
+    }
+
+    private static boolean collectLookupValues(final Filter filter, final String[] names, final List<String> values) {
+        if (filter instanceof OrFilter) {
+            for (Filter child : ((OrFilter) filter).getFilters()) {
+                if (!collectLookupValues(child, names, values)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        if (filter instanceof EqualsFilter) {
+            Attribute attribute = ((EqualsFilter) filter).getAttribute();
+            if (Arrays.stream(names).anyMatch(attribute::is)
+                    && attribute.getValue() != null && attribute.getValue().size() == 1
+                    && attribute.getValue().get(0) != null) {
+
+                values.add(attribute.getValue().get(0).toString());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds out which parts of a filter expression were rejected by the service, by sending minimal filter
+     * expressions: first the whole one, as the request may have been rejected for other reasons; then each
+     * comparison on its own and, if all are accepted, each logical operator combining an accepted comparison with
+     * itself.
+     *
+     * @param plan filter plan whose expression was rejected
+     * @param capabilities where rejected operators and attributes are recorded
+     * @return whether anything was learnt, so that a narrower filter expression can be tried
+     */
+    private boolean learnRejectedFilter(final SCIMv11FilterPlanner.Plan plan, final FilterCapabilities capabilities) {
+        if (plan.getFilterQuery() == null || client.isFilterSupported(plan.getFilterQuery())) {
+            return false;
+        }
+
+        boolean learnt = false;
+        String accepted = null;
+        Set<String> checked = new HashSet<>();
+        for (SCIMv11FilterTranslator.Comparison comparison : plan.getComparisons()) {
+            // the whole expression, if made of this comparison only, was already found rejected
+            if (checked.add(comparison.getExpression())) {
+                if (!comparison.getExpression().equals(plan.getFilterQuery())
+                        && client.isFilterSupported(comparison.getExpression())) {
+                    accepted = accepted == null ? comparison.getExpression() : accepted;
+                } else if (learnRejectedComparison(comparison, capabilities)) {
+                    learnt = true;
+                }
+            }
+        }
+
+        if (!learnt && accepted != null) {
+            for (String operator : new LinkedHashSet<>(plan.getLogicalOperators())) {
+                if (!learnt && capabilities.isSupported(operator)
+                        && !client.isFilterSupported("(" + accepted + " " + operator + " " + accepted + ")")) {
+
+                    capabilities.reject(operator);
+                    learnt = true;
+                }
+            }
+        }
+        return learnt;
+    }
+
+    /**
+     * Tells an unsupported operator or attribute from an invalid value, by comparing the same attribute with the
+     * same value for equality, then checking the attribute presence.
+     *
+     * @param comparison comparison rejected on its own
+     * @param capabilities where rejected operators and attributes are recorded
+     * @return whether anything was learnt, i.e. the value was not found to be the problem
+     */
+    private boolean learnRejectedComparison(
+            final SCIMv11FilterTranslator.Comparison comparison, final FilterCapabilities capabilities) {
+
+        String path = comparison.getPath();
+        if ("pr".equals(comparison.getOperator())) {
+            capabilities.reject(path, comparison.getOperator());
+            return true;
+        }
+        if (!"eq".equals(comparison.getOperator())
+                && client.isFilterSupported(path + " eq " + comparison.getValue())) {
+
+            capabilities.reject(path, comparison.getOperator());
+            return true;
+        }
+        if (!client.isFilterSupported(path + " pr")) {
+            capabilities.rejectPath(path);
+            return true;
+        }
+        LOG.ok("Value in {0} rejected by service", comparison.getExpression());
+        return false;
+    }
+
+    /**
+     * Hands over locally sorted objects, without the attributes which were only needed to sort, up to the given
+     * page size.
+     */
+    static class SortedResultsHandler implements ResultsHandler {
+
+        private final ResultsHandler handler;
+
+        private final Set<String> sortAttributes;
+
+        private final int pageSize;
+
+        private int handled = 0;
+
+        SortedResultsHandler(final ResultsHandler handler, final Set<String> sortAttributes, final int pageSize) {
+            this.handler = handler;
+            this.sortAttributes = sortAttributes;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public boolean handle(final ConnectorObject connectorObject) {
+            ConnectorObject result = connectorObject;
+            if (!sortAttributes.isEmpty()) {
+                ConnectorObjectBuilder builder = new ConnectorObjectBuilder()
+                        .setObjectClass(connectorObject.getObjectClass());
+                connectorObject.getAttributes().stream()
+                        .filter(attribute -> AttributeUtil.isSpecial(attribute)
+                        || !sortAttributes.contains(attribute.getName()))
+                        .forEach(builder::addAttribute);
+                result = builder.build();
+            }
+
+            handled++;
+            return handler.handle(result) && (pageSize == -1 || handled < pageSize);
+        }
+
+        public int getHandled() {
+            return handled;
+        }
+    }
+
+    /**
+     * Converts each user matching the residual filter, if any, and passes it to the given handler, keeping track of
+     * how many were read and whether the handler asked to stop.
+     */
+    private class UserResultsHandler implements UserHandler {
+
+        private final ResultsHandler handler;
+
+        private final Set<String> attributesToGet;
+
+        private final Predicate<SCIMv11FilterPlanner.Candidate> residual;
+
+        private int read = 0;
+
+        private boolean stopped = false;
+
+        UserResultsHandler(
+                final ResultsHandler handler,
+                final Set<String> attributesToGet,
+                final Predicate<SCIMv11FilterPlanner.Candidate> residual) {
+
+            this.handler = handler;
+            this.attributesToGet = attributesToGet;
+            this.residual = residual;
+        }
+
+        @Override
+        public boolean handle(final User user) {
+            read++;
+            // Users not matching the part of filter which was not evaluated by the service are not even converted
+            // attributes converted to evaluate the residual filter are reused to build the connector object
+            SCIMv11FilterPlanner.Candidate candidate = new SCIMv11FilterPlanner.Candidate(user);
+            if (residual != null && !residual.test(candidate)) {
+                return true;
+            }
+
+            stopped = !handler.handle(fromUser(candidate, attributesToGet));
+            return !stopped;
+        }
+
+        /**
+         * @return number of Users read, whether matching or not
+         */
+        public int getRead() {
+            return read;
+        }
+
+        public boolean isStopped() {
+            return stopped;
+        }
+    }
 }
@@ -18,8 +18,10 @@ package net.tirasa.connid.bundles.scimv11;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.concurrent.TimeUnit;
 import javax.ws.rs.core.MediaType;
 import net.tirasa.connid.bundles.scimv11.dto.SCIMSchema;
+import net.tirasa.connid.bundles.scimv11.service.SCIMv11Client;
 import net.tirasa.connid.bundles.scimv11.utils.SCIMv11Utils;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
@@ -38,6 +40,11 @@ public class SCIMv11ConnectorConfiguration extends AbstractConfiguration impleme
 
     private static final Log LOG = Log.getLog(SCIMv11ConnectorConfiguration.class);
 
+    /**
+     * How long locally sorted search results are kept, waiting for their next page to be asked for.
+     */
+    private static final long SORTED_RESULTS_TTL = TimeUnit.MINUTES.toMillis(5);
+
     private String username;
 
     private GuardedString password;
@@ -62,6 +69,52 @@ public class SCIMv11ConnectorConfiguration extends AbstractConfiguration impleme
 
     private String accessTokenContentType = MediaType.APPLICATION_FORM_URLENCODED;
 
+    private String accessTokenExpiresInNodeId = "expires_in";
+
+    private int accessTokenRefreshPercentage = 0;
+
+    private int pageSize = 100;
+
+    private int prefetchPages = 0;
+
+    private int scanParallelism = 1;
+
+    private boolean scanOrdered = true;
+
+    private boolean adaptivePageSize = false;
+
+    private int minPageSize = 10;
+
+    private int maxPageSize = 1000;
+
+    private int pageTargetTime = 2000;
+
+    private int pageTargetBytes = 1048576;
+
+    private boolean consistentScan = false;
+
+    private int sortBufferSize = 10000;
+
+    private int lookupBatchWindow = 0;
+
+    private int userCacheSize = 0;
+
+    private int userCacheTtl = 60;
+
+    private int notFoundCacheTtl = 0;
+
+    private int queryCacheTtl = 0;
+
+    private int maxConnections = 100;
+
+    private int maxConnectionsPerRoute = 20;
+
+    private int connectionMaxIdle = 60;
+
+    private SCIMv11Client client;
+
+    private SCIMv11SortedResults sortedResults;
+
     @ConfigurationProperty(order = 1, displayMessageKey = "baseAddress.display",
             helpMessageKey = "baseAddress.help", required = true)
     public String getBaseAddress() {
@@ -183,6 +236,242 @@ public class SCIMv11ConnectorConfiguration extends AbstractConfiguration impleme
         this.accessTokenContentType = accessTokenContentType;
     }
 
+    @ConfigurationProperty(displayMessageKey = "accessTokenExpiresInNodeId.display",
+            helpMessageKey = "accessTokenExpiresInNodeId.help", order = 13)
+    public String getAccessTokenExpiresInNodeId() {
+        return accessTokenExpiresInNodeId;
+    }
+
+    public void setAccessTokenExpiresInNodeId(final String accessTokenExpiresInNodeId) {
+        this.accessTokenExpiresInNodeId = accessTokenExpiresInNodeId;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "accessTokenRefreshPercentage.display",
+            helpMessageKey = "accessTokenRefreshPercentage.help", order = 14)
+    public int getAccessTokenRefreshPercentage() {
+        return accessTokenRefreshPercentage;
+    }
+
+    public void setAccessTokenRefreshPercentage(final int accessTokenRefreshPercentage) {
+        this.accessTokenRefreshPercentage = accessTokenRefreshPercentage;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "pageSize.display",
+            helpMessageKey = "pageSize.help", order = 15)
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(final int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "prefetchPages.display",
+            helpMessageKey = "prefetchPages.help", order = 16)
+    public int getPrefetchPages() {
+        return prefetchPages;
+    }
+
+    public void setPrefetchPages(final int prefetchPages) {
+        this.prefetchPages = prefetchPages;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "scanParallelism.display",
+            helpMessageKey = "scanParallelism.help", order = 17)
+    public int getScanParallelism() {
+        return scanParallelism;
+    }
+
+    public void setScanParallelism(final int scanParallelism) {
+        this.scanParallelism = scanParallelism;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "scanOrdered.display",
+            helpMessageKey = "scanOrdered.help", order = 18)
+    public boolean isScanOrdered() {
+        return scanOrdered;
+    }
+
+    public void setScanOrdered(final boolean scanOrdered) {
+        this.scanOrdered = scanOrdered;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "adaptivePageSize.display",
+            helpMessageKey = "adaptivePageSize.help", order = 19)
+    public boolean isAdaptivePageSize() {
+        return adaptivePageSize;
+    }
+
+    public void setAdaptivePageSize(final boolean adaptivePageSize) {
+        this.adaptivePageSize = adaptivePageSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "minPageSize.display",
+            helpMessageKey = "minPageSize.help", order = 20)
+    public int getMinPageSize() {
+        return minPageSize;
+    }
+
+    public void setMinPageSize(final int minPageSize) {
+        this.minPageSize = minPageSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "maxPageSize.display",
+            helpMessageKey = "maxPageSize.help", order = 21)
+    public int getMaxPageSize() {
+        return maxPageSize;
+    }
+
+    public void setMaxPageSize(final int maxPageSize) {
+        this.maxPageSize = maxPageSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "pageTargetTime.display",
+            helpMessageKey = "pageTargetTime.help", order = 22)
+    public int getPageTargetTime() {
+        return pageTargetTime;
+    }
+
+    public void setPageTargetTime(final int pageTargetTime) {
+        this.pageTargetTime = pageTargetTime;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "pageTargetBytes.display",
+            helpMessageKey = "pageTargetBytes.help", order = 23)
+    public int getPageTargetBytes() {
+        return pageTargetBytes;
+    }
+
+    public void setPageTargetBytes(final int pageTargetBytes) {
+        this.pageTargetBytes = pageTargetBytes;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "consistentScan.display",
+            helpMessageKey = "consistentScan.help", order = 24)
+    public boolean isConsistentScan() {
+        return consistentScan;
+    }
+
+    public void setConsistentScan(final boolean consistentScan) {
+        this.consistentScan = consistentScan;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "sortBufferSize.display",
+            helpMessageKey = "sortBufferSize.help", order = 25)
+    public int getSortBufferSize() {
+        return sortBufferSize;
+    }
+
+    public void setSortBufferSize(final int sortBufferSize) {
+        this.sortBufferSize = sortBufferSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "lookupBatchWindow.display",
+            helpMessageKey = "lookupBatchWindow.help", order = 26)
+    public int getLookupBatchWindow() {
+        return lookupBatchWindow;
+    }
+
+    public void setLookupBatchWindow(final int lookupBatchWindow) {
+        this.lookupBatchWindow = lookupBatchWindow;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "userCacheSize.display",
+            helpMessageKey = "userCacheSize.help", order = 27)
+    public int getUserCacheSize() {
+        return userCacheSize;
+    }
+
+    public void setUserCacheSize(final int userCacheSize) {
+        this.userCacheSize = userCacheSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "userCacheTtl.display",
+            helpMessageKey = "userCacheTtl.help", order = 28)
+    public int getUserCacheTtl() {
+        return userCacheTtl;
+    }
+
+    public void setUserCacheTtl(final int userCacheTtl) {
+        this.userCacheTtl = userCacheTtl;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "notFoundCacheTtl.display",
+            helpMessageKey = "notFoundCacheTtl.help", order = 29)
+    public int getNotFoundCacheTtl() {
+        return notFoundCacheTtl;
+    }
+
+    public void setNotFoundCacheTtl(final int notFoundCacheTtl) {
+        this.notFoundCacheTtl = notFoundCacheTtl;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "queryCacheTtl.display",
+            helpMessageKey = "queryCacheTtl.help", order = 30)
+    public int getQueryCacheTtl() {
+        return queryCacheTtl;
+    }
+
+    public void setQueryCacheTtl(final int queryCacheTtl) {
+        this.queryCacheTtl = queryCacheTtl;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "maxConnections.display",
+            helpMessageKey = "maxConnections.help", order = 31)
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(final int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "maxConnectionsPerRoute.display",
+            helpMessageKey = "maxConnectionsPerRoute.help", order = 32)
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsPerRoute(final int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "connectionMaxIdle.display",
+            helpMessageKey = "connectionMaxIdle.help", order = 33)
+    public int getConnectionMaxIdle() {
+        return connectionMaxIdle;
+    }
+
+    public void setConnectionMaxIdle(final int connectionMaxIdle) {
+        this.connectionMaxIdle = connectionMaxIdle;
+    }
+
+    /**
+     * Client shared by all connector instances built on this configuration; being this a stateful configuration,
+     * the underlying HTTP connection pool outlives single operations and is closed only on {@link #release()}.
+     *
+     * @return shared client
+     */
+    public synchronized SCIMv11Client getClient() {
+        if (client == null) {
+            client = new SCIMv11Client(this);
+        }
+        return client;
+    }
+
+    /**
+     * Locally sorted search results are kept between pages for {@link #SORTED_RESULTS_TTL}, up to
+     * {@link #release()}.
+     *
+     * @return shared sorted results
+     */
+    synchronized SCIMv11SortedResults getSortedResults() {
+        if (sortedResults == null) {
+            sortedResults = new SCIMv11SortedResults(SORTED_RESULTS_TTL);
+        }
+        return sortedResults;
+    }
+
     @Override
     public void validate() {
         if (StringUtil.isBlank(baseAddress)) {
@@ -214,10 +503,63 @@ public class SCIMv11ConnectorConfiguration extends AbstractConfiguration impleme
                 && !updateMethod.equalsIgnoreCase("PUT")) {
             failValidation("Update method is not valid; must be 'PUT' or 'PATCH'.");
         }
+        if (accessTokenRefreshPercentage < 0 || accessTokenRefreshPercentage >= 100) {
+            failValidation("Access token refresh percentage must be between 0 and 99.");
+        }
+        if (pageSize <= 0) {
+            failValidation("Page size must be positive.");
+        }
+        if (prefetchPages < 0) {
+            failValidation("Prefetch pages cannot be negative.");
+        }
+        if (scanParallelism <= 0) {
+            failValidation("Scan parallelism must be positive.");
+        }
+        if (minPageSize <= 0 || maxPageSize < minPageSize) {
+            failValidation("Min page size must be positive and not greater than max page size.");
+        }
+        if (pageTargetTime <= 0 || pageTargetBytes <= 0) {
+            failValidation("Page target time and bytes must be positive.");
+        }
+        if (sortBufferSize <= 0) {
+            failValidation("Sort buffer size must be positive.");
+        }
+        if (lookupBatchWindow < 0) {
+            failValidation("Lookup batch window cannot be negative.");
+        }
+        if (userCacheSize < 0) {
+            failValidation("User cache size cannot be negative.");
+        }
+        if (userCacheTtl <= 0) {
+            failValidation("User cache TTL must be positive.");
+        }
+        if (notFoundCacheTtl < 0) {
+            failValidation("Not found cache TTL cannot be negative.");
+        }
+        if (queryCacheTtl < 0) {
+            failValidation("Query cache TTL cannot be negative.");
+        }
+        if (maxConnections <= 0 || maxConnectionsPerRoute <= 0) {
+            failValidation("Max connections and max connections per route must be positive.");
+        }
+        if (maxConnectionsPerRoute > maxConnections) {
+            failValidation("Max connections per route cannot be greater than max connections.");
+        }
+        if (connectionMaxIdle < 0) {
+            failValidation("Connection max idle cannot be negative.");
+        }
     }
 
     @Override
-    public void release() {
+    public synchronized void release() {
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+        if (sortedResults != null) {
+            sortedResults.close();
+            sortedResults = null;
+        }
     }
 
     private void failValidation(String key, Object... args) {
@@ -0,0 +1,321 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import net.tirasa.connid.bundles.scimv11.utils.SCIMv11Utils;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SortKey;
+import org.identityconnectors.framework.common.serializer.BinaryObjectDeserializer;
+import org.identityconnectors.framework.common.serializer.BinaryObjectSerializer;
+import org.identityconnectors.framework.common.serializer.ObjectSerializerFactory;
+
+/**
+ * Sorts connector objects in bounded memory: objects are collected as handled and, every {@code bufferSize} of
+ * them, sorted and written to a temporary file; sorted runs are then merged while handing objects over.
+ */
+final class SCIMv11ExternalSorter implements ResultsHandler, AutoCloseable {
+
+    private static final Log LOG = Log.getLog(SCIMv11ExternalSorter.class);
+
+    /**
+     * Maximum number of runs merged at once, so that open files are bounded as well.
+     */
+    private static final int MAX_MERGE_WIDTH = 64;
+
+    private final Comparator<ConnectorObject> comparator;
+
+    private final int bufferSize;
+
+    private final List<ConnectorObject> buffer = new ArrayList<>();
+
+    private final List<Run> runs = new ArrayList<>();
+
+    private int count = 0;
+
+    /**
+     * @param sortKeys attributes to sort by, in order of precedence
+     * @param bufferSize how many objects are sorted in memory
+     */
+    SCIMv11ExternalSorter(final SortKey[] sortKeys, final int bufferSize) {
+        this.comparator = comparator(sortKeys);
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public boolean handle(final ConnectorObject connectorObject) {
+        buffer.add(connectorObject);
+        count++;
+        if (buffer.size() >= bufferSize) {
+            spill();
+        }
+        return true;
+    }
+
+    /**
+     * @return number of objects handled so far
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Hands over all the objects handled so far, sorted, skipping the given number of them, until either none is
+     * left or the given handler asks to stop.
+     *
+     * @param offset number of sorted objects to skip
+     * @param handler receives sorted objects
+     */
+    public void replay(final int offset, final ResultsHandler handler) {
+        buffer.sort(comparator);
+        if (!runs.isEmpty()) {
+            LOG.ok("Merging {0} sorted runs of {1} objects", runs.size() + 1, count);
+            while (runs.size() > MAX_MERGE_WIDTH) {
+                merge();
+            }
+        }
+
+        List<Iterator<ConnectorObject>> sources = new ArrayList<>();
+        try {
+            for (Run run : runs) {
+                sources.add(run.open());
+            }
+            sources.add(buffer.iterator());
+
+            Iterator<ConnectorObject> sorted = sources.size() == 1 ? sources.get(0) : new Merge(sources, comparator);
+            for (int skipped = 0; skipped < offset && sorted.hasNext(); skipped++) {
+                sorted.next();
+            }
+            boolean proceed = true;
+            while (proceed && sorted.hasNext()) {
+                proceed = handler.handle(sorted.next());
+            }
+        } finally {
+            sources.stream().filter(RunIterator.class::isInstance).forEach(source -> ((RunIterator) source).close());
+        }
+    }
+
+    @Override
+    public void close() {
+        buffer.clear();
+        runs.forEach(Run::delete);
+        runs.clear();
+    }
+
+    private void spill() {
+        buffer.sort(comparator);
+        runs.add(Run.write(buffer.iterator(), buffer.size()));
+        buffer.clear();
+    }
+
+    /**
+     * Merges the first {@link #MAX_MERGE_WIDTH} runs into a single one.
+     */
+    private void merge() {
+        List<Run> merged = new ArrayList<>(runs.subList(0, MAX_MERGE_WIDTH));
+        List<Iterator<ConnectorObject>> sources = new ArrayList<>();
+        try {
+            int size = 0;
+            for (Run run : merged) {
+                sources.add(run.open());
+                size += run.size;
+            }
+            runs.add(Run.write(new Merge(sources, comparator), size));
+        } finally {
+            sources.forEach(source -> ((RunIterator) source).close());
+        }
+        merged.forEach(Run::delete);
+        runs.subList(0, MAX_MERGE_WIDTH).clear();
+    }
+
+    /**
+     * Objects lacking a sort attribute come last; strings are compared ignoring case, as done by SCIM services.
+     */
+    private static Comparator<ConnectorObject> comparator(final SortKey[] sortKeys) {
+        Comparator<ConnectorObject> comparator = null;
+        for (SortKey sortKey : sortKeys) {
+            Comparator<ConnectorObject> byKey = (left, right) -> {
+                Object leftValue = getSortValue(left, sortKey.getField());
+                Object rightValue = getSortValue(right, sortKey.getField());
+                if (leftValue == null || rightValue == null) {
+                    return leftValue == null ? (rightValue == null ? 0 : 1) : -1;
+                }
+                int result = compareValues(leftValue, rightValue);
+                return sortKey.isAscendingOrder() ? result : -result;
+            };
+            comparator = comparator == null ? byKey : comparator.thenComparing(byKey);
+        }
+        return comparator == null ? (left, right) -> 0 : comparator;
+    }
+
+    private static Object getSortValue(final ConnectorObject connectorObject, final String name) {
+        Attribute attribute = connectorObject.getAttributeByName(name);
+        return attribute == null || attribute.getValue() == null || attribute.getValue().isEmpty()
+                ? null
+                : attribute.getValue().get(0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(final Object left, final Object right) {
+        if (left instanceof String && right instanceof String) {
+            return String.CASE_INSENSITIVE_ORDER.compare((String) left, (String) right);
+        }
+        if (left instanceof Comparable && left.getClass().equals(right.getClass())) {
+            return ((Comparable<Object>) left).compareTo(right);
+        }
+        return left.toString().compareTo(right.toString());
+    }
+
+    /**
+     * Sorted objects in a temporary file, serialized with the framework binary serializer.
+     */
+    private static final class Run {
+
+        private final File file;
+
+        private final int size;
+
+        private Run(final File file, final int size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        private static Run write(final Iterator<ConnectorObject> sorted, final int size) {
+            File file = null;
+            try {
+                file = File.createTempFile("scimv11-sort", ".run");
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                    BinaryObjectSerializer serializer = ObjectSerializerFactory.getInstance().newBinarySerializer(out);
+                    while (sorted.hasNext()) {
+                        serializer.writeObject(sorted.next());
+                    }
+                    serializer.close();
+                }
+            } catch (IOException e) {
+                if (file != null && !file.delete()) {
+                    LOG.warn("Could not delete {0}", file);
+                }
+                SCIMv11Utils.handleGeneralError("While writing sorted Users to temporary file", e);
+            }
+            return new Run(file, size);
+        }
+
+        private RunIterator open() {
+            try {
+                return new RunIterator(new BufferedInputStream(new FileInputStream(file)), size);
+            } catch (IOException e) {
+                SCIMv11Utils.handleGeneralError("While reading sorted Users from temporary file", e);
+                return null;
+            }
+        }
+
+        private void delete() {
+            if (!file.delete()) {
+                LOG.warn("Could not delete {0}", file);
+            }
+        }
+    }
+
+    private static final class RunIterator implements Iterator<ConnectorObject> {
+
+        private final BinaryObjectDeserializer deserializer;
+
+        private int remaining;
+
+        private RunIterator(final InputStream in, final int size) {
+            this.deserializer = ObjectSerializerFactory.getInstance().newBinaryDeserializer(in);
+            this.remaining = size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public ConnectorObject next() {
+            if (remaining <= 0) {
+                throw new NoSuchElementException();
+            }
+            remaining--;
+            return (ConnectorObject) deserializer.readObject();
+        }
+
+        private void close() {
+            deserializer.close();
+        }
+    }
+
+    /**
+     * Merges sorted sources, always taking the least of their heads.
+     */
+    private static final class Merge implements Iterator<ConnectorObject> {
+
+        private final PriorityQueue<Head> heads;
+
+        private Merge(final List<Iterator<ConnectorObject>> sources, final Comparator<ConnectorObject> comparator) {
+            heads = new PriorityQueue<>(Math.max(1, sources.size()),
+                    (left, right) -> comparator.compare(left.object, right.object));
+            sources.stream().filter(Iterator::hasNext).forEach(source -> heads.add(new Head(source)));
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public ConnectorObject next() {
+            Head head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            ConnectorObject object = head.object;
+            if (head.source.hasNext()) {
+                heads.add(new Head(head.source));
+            }
+            return object;
+        }
+    }
+
+    private static final class Head {
+
+        private final Iterator<ConnectorObject> source;
+
+        private final ConnectorObject object;
+
+        private Head(final Iterator<ConnectorObject> source) {
+            this.source = source;
+            this.object = source.next();
+        }
+    }
+}
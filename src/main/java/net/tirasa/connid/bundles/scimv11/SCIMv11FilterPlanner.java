@@ -0,0 +1,560 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import net.tirasa.connid.bundles.scimv11.dto.SCIMSchema;
+import net.tirasa.connid.bundles.scimv11.dto.User;
+import net.tirasa.connid.bundles.scimv11.service.FilterCapabilities;
+import net.tirasa.connid.bundles.scimv11.utils.SCIMv11Attributes;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.AndFilter;
+import org.identityconnectors.framework.common.objects.filter.AttributeFilter;
+import org.identityconnectors.framework.common.objects.filter.CompositeFilter;
+import org.identityconnectors.framework.common.objects.filter.ContainsAllValuesFilter;
+import org.identityconnectors.framework.common.objects.filter.ContainsFilter;
+import org.identityconnectors.framework.common.objects.filter.EndsWithFilter;
+import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.common.objects.filter.EqualsIgnoreCaseFilter;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterVisitor;
+import org.identityconnectors.framework.common.objects.filter.GreaterThanFilter;
+import org.identityconnectors.framework.common.objects.filter.GreaterThanOrEqualFilter;
+import org.identityconnectors.framework.common.objects.filter.LessThanFilter;
+import org.identityconnectors.framework.common.objects.filter.LessThanOrEqualFilter;
+import org.identityconnectors.framework.common.objects.filter.NotFilter;
+import org.identityconnectors.framework.common.objects.filter.OrFilter;
+import org.identityconnectors.framework.common.objects.filter.StartsWithFilter;
+
+/**
+ * Splits a filter into the largest part which can be evaluated by the service, as SCIM filter expression, and the
+ * residual part, compiled as predicate evaluated on each {@link User} read, before it is converted.
+ */
+public final class SCIMv11FilterPlanner implements FilterVisitor<SCIMv11FilterPlanner.Plan, Void> {
+
+    private static final Log LOG = Log.getLog(SCIMv11FilterPlanner.class);
+
+    private final SCIMv11FilterTranslator translator;
+
+    private final FilterCapabilities capabilities;
+
+    /**
+     * User read from the service, whose attributes are converted at most once, when first needed either to evaluate
+     * the residual predicate or to build the connector object.
+     */
+    public static final class Candidate {
+
+        private final User user;
+
+        private Set<Attribute> attributes;
+
+        public Candidate(final User user) {
+            this.user = user;
+        }
+
+        public User getUser() {
+            return user;
+        }
+
+        /**
+         * @return attributes of the User, as returned by {@link User#toAttributes()}
+         * @throws IllegalAccessException if attributes cannot be converted
+         */
+        public Set<Attribute> getAttributes() throws IllegalAccessException {
+            if (attributes == null) {
+                attributes = user.toAttributes();
+            }
+            return attributes;
+        }
+    }
+
+    /**
+     * Outcome of filter planning.
+     */
+    public static final class Plan {
+
+        private final String filterQuery;
+
+        private final Predicate<Candidate> residual;
+
+        private final Set<String> residualAttributes;
+
+        private final List<SCIMv11FilterTranslator.Comparison> comparisons;
+
+        private final List<String> logicalOperators;
+
+        private Plan(final Predicate<Candidate> residual, final Set<String> residualAttributes) {
+            this(null, residual, residualAttributes, Collections.emptyList(), Collections.emptyList());
+        }
+
+        private Plan(
+                final String filterQuery,
+                final Predicate<Candidate> residual,
+                final Set<String> residualAttributes,
+                final List<SCIMv11FilterTranslator.Comparison> comparisons,
+                final List<String> logicalOperators) {
+
+            this.filterQuery = filterQuery;
+            this.residual = residual;
+            this.residualAttributes = residualAttributes;
+            this.comparisons = comparisons;
+            this.logicalOperators = logicalOperators;
+        }
+
+        /**
+         * @return SCIM filter expression to be evaluated by the service, or null if none
+         */
+        public String getFilterQuery() {
+            return filterQuery;
+        }
+
+        /**
+         * @return predicate to be evaluated on each User returned by the service, or null if none
+         */
+        public Predicate<Candidate> getResidual() {
+            return residual;
+        }
+
+        /**
+         * @return names of the attributes required to evaluate the residual predicate
+         */
+        public Set<String> getResidualAttributes() {
+            return residualAttributes;
+        }
+
+        /**
+         * @return comparisons the filter expression is made of
+         */
+        public List<SCIMv11FilterTranslator.Comparison> getComparisons() {
+            return comparisons;
+        }
+
+        /**
+         * @return logical operators the filter expression is made of
+         */
+        public List<String> getLogicalOperators() {
+            return logicalOperators;
+        }
+
+        private boolean isPushedDown() {
+            return residual == null;
+        }
+    }
+
+    /**
+     * Plans the given filter.
+     *
+     * @param filter filter, or null
+     * @param customSchema custom attributes, or null if none
+     * @param capabilities operators and attributes rejected by the service, to be evaluated locally, or null if none
+     * @return filter plan
+     */
+    public static Plan plan(final Filter filter, final SCIMSchema customSchema, final FilterCapabilities capabilities) {
+        if (filter == null) {
+            return new Plan(null, Collections.<String>emptySet());
+        }
+
+        SCIMv11FilterTranslator translator = new SCIMv11FilterTranslator(customSchema, capabilities);
+        Plan plan = filter.accept(new SCIMv11FilterPlanner(translator, capabilities), null);
+        LOG.ok("Filter {0} planned as {1}, {2} locally", filter, plan.getFilterQuery(),
+                plan.isPushedDown() ? "nothing" : "attributes " + plan.getResidualAttributes());
+        return plan;
+    }
+
+    private SCIMv11FilterPlanner(final SCIMv11FilterTranslator translator, final FilterCapabilities capabilities) {
+        this.translator = translator;
+        this.capabilities = capabilities;
+    }
+
+    @Override
+    public Plan visitAndFilter(final Void p, final AndFilter filter) {
+        String filterQuery = null;
+        Predicate<Candidate> residual = null;
+        Set<String> residualAttributes = new HashSet<>();
+        List<SCIMv11FilterTranslator.Comparison> comparisons = new ArrayList<>();
+        List<String> logicalOperators = new ArrayList<>();
+        for (Filter child : filter.getFilters()) {
+            Plan plan = child.accept(this, p);
+            if (plan.getFilterQuery() != null && filterQuery != null && !isSupported("and")) {
+                // only the first part is evaluated by the service, the others are evaluated locally
+                plan = local(child);
+            }
+            if (plan.getFilterQuery() != null) {
+                if (filterQuery == null) {
+                    filterQuery = plan.getFilterQuery();
+                } else {
+                    filterQuery = "(" + filterQuery + " and " + plan.getFilterQuery() + ")";
+                    logicalOperators.add("and");
+                }
+                comparisons.addAll(plan.getComparisons());
+                logicalOperators.addAll(plan.getLogicalOperators());
+            }
+            if (plan.getResidual() != null) {
+                residual = residual == null ? plan.getResidual() : residual.and(plan.getResidual());
+                residualAttributes.addAll(plan.getResidualAttributes());
+            }
+        }
+        return new Plan(filterQuery, residual, residualAttributes, comparisons, logicalOperators);
+    }
+
+    @Override
+    public Plan visitOrFilter(final Void p, final OrFilter filter) {
+        List<Plan> plans = new ArrayList<>();
+        for (Filter child : filter.getFilters()) {
+            plans.add(child.accept(this, p));
+        }
+        // a disjunction cannot be split: the service would miss the Users matching the residual part only
+        if (plans.stream().anyMatch(plan -> plan.getFilterQuery() == null) || !isSupported("or")) {
+            return local(filter);
+        }
+
+        String filterQuery = null;
+        List<SCIMv11FilterTranslator.Comparison> comparisons = new ArrayList<>();
+        List<String> logicalOperators = new ArrayList<>();
+        for (Plan plan : plans) {
+            if (filterQuery == null) {
+                filterQuery = plan.getFilterQuery();
+            } else {
+                filterQuery = "(" + filterQuery + " or " + plan.getFilterQuery() + ")";
+                logicalOperators.add("or");
+            }
+            comparisons.addAll(plan.getComparisons());
+            logicalOperators.addAll(plan.getLogicalOperators());
+        }
+        if (plans.stream().allMatch(Plan::isPushedDown)) {
+            return new Plan(filterQuery, null, Collections.<String>emptySet(), comparisons, logicalOperators);
+        }
+
+        // the service returns a superset, still to be filtered
+        Plan local = local(filter);
+        return new Plan(filterQuery, local.getResidual(), local.getResidualAttributes(), comparisons, logicalOperators);
+    }
+
+    @Override
+    public Plan visitNotFilter(final Void p, final NotFilter filter) {
+        return leaf(filter);
+    }
+
+    @Override
+    public Plan visitEqualsFilter(final Void p, final EqualsFilter filter) {
+        return leaf(filter);
+    }
+
+    @Override
+    public Plan visitEqualsIgnoreCaseFilter(final Void p, final EqualsIgnoreCaseFilter filter) {
+        return leaf(filter);
+    }
+
+    @Override
+    public Plan visitContainsFilter(final Void p, final ContainsFilter filter) {
+        return leaf(filter);
+    }
+
+    @Override
+    public Plan visitContainsAllValuesFilter(final Void p, final ContainsAllValuesFilter filter) {
+        return leaf(filter);
+    }
+
+    @Override
+    public Plan visitStartsWithFilter(final Void p, final StartsWithFilter filter) {
+        return leaf(filter);
+    }
+
+    @Override
+    public Plan visitEndsWithFilter(final Void p, final EndsWithFilter filter) {
+        return leaf(filter);
+    }
+
+    @Override
+    public Plan visitGreaterThanFilter(final Void p, final GreaterThanFilter filter) {
+        return leaf(filter);
+    }
+
+    @Override
+    public Plan visitGreaterThanOrEqualFilter(final Void p, final GreaterThanOrEqualFilter filter) {
+        return leaf(filter);
+    }
+
+    @Override
+    public Plan visitLessThanFilter(final Void p, final LessThanFilter filter) {
+        return leaf(filter);
+    }
+
+    @Override
+    public Plan visitLessThanOrEqualFilter(final Void p, final LessThanOrEqualFilter filter) {
+        return leaf(filter);
+    }
+
+    @Override
+    public Plan visitExtendedFilter(final Void p, final Filter filter) {
+        // unknown to both service and connector: left to the framework
+        return new Plan(null, Collections.<String>emptySet());
+    }
+
+    private Plan leaf(final Filter filter) {
+        int comparisonsFrom = translator.getComparisons().size();
+        int logicalOperatorsFrom = translator.getLogicalOperators().size();
+        String filterQuery = translator.toFilterQuery(filter);
+        if (filterQuery == null) {
+            return local(filter);
+        }
+
+        // as created by the translator while translating this filter only
+        List<SCIMv11FilterTranslator.Comparison> comparisons = new ArrayList<>(translator.getComparisons()
+                .subList(comparisonsFrom, translator.getComparisons().size()));
+        List<String> logicalOperators = new ArrayList<>(translator.getLogicalOperators()
+                .subList(logicalOperatorsFrom, translator.getLogicalOperators().size()));
+        if (isApproximate(filter)) {
+            // the service returns a superset, still to be filtered
+            Plan local = local(filter);
+            return new Plan(
+                    filterQuery, local.getResidual(), local.getResidualAttributes(), comparisons, logicalOperators);
+        }
+        return new Plan(filterQuery, null, Collections.<String>emptySet(), comparisons, logicalOperators);
+    }
+
+    private boolean isSupported(final String operator) {
+        return capabilities == null || capabilities.isSupported(operator);
+    }
+
+    private static boolean isApproximate(final Filter filter) {
+        if (filter instanceof NotFilter) {
+            return isApproximate(((NotFilter) filter).getFilter());
+        }
+        if (filter instanceof CompositeFilter) {
+            return ((CompositeFilter) filter).getFilters().stream().anyMatch(SCIMv11FilterPlanner::isApproximate);
+        }
+        return filter instanceof AttributeFilter && SCIMv11FilterTranslator.isApproximate((AttributeFilter) filter);
+    }
+
+    private static Plan local(final Filter filter) {
+        Set<String> attributes = new HashSet<>();
+        Predicate<Candidate> predicate = filter.accept(new Compiler(), attributes);
+        return predicate == null
+                ? new Plan(null, Collections.<String>emptySet())
+                : new Plan(predicate, attributes);
+    }
+
+    /**
+     * Compiles a filter as predicate on {@link User}, collecting the names of the attributes involved; filters
+     * containing extended filters, unknown to the connector, cannot be compiled and are left to the framework.
+     */
+    private static final class Compiler implements FilterVisitor<Predicate<Candidate>, Set<String>> {
+
+        @Override
+        public Predicate<Candidate> visitAndFilter(final Set<String> attributes, final AndFilter filter) {
+            Predicate<Candidate> predicate = candidate -> true;
+            for (Filter child : filter.getFilters()) {
+                Predicate<Candidate> childPredicate = child.accept(this, attributes);
+                if (childPredicate == null) {
+                    return null;
+                }
+                predicate = predicate.and(childPredicate);
+            }
+            return predicate;
+        }
+
+        @Override
+        public Predicate<Candidate> visitOrFilter(final Set<String> attributes, final OrFilter filter) {
+            Predicate<Candidate> predicate = candidate -> false;
+            for (Filter child : filter.getFilters()) {
+                Predicate<Candidate> childPredicate = child.accept(this, attributes);
+                if (childPredicate == null) {
+                    return null;
+                }
+                predicate = predicate.or(childPredicate);
+            }
+            return predicate;
+        }
+
+        @Override
+        public Predicate<Candidate> visitNotFilter(final Set<String> attributes, final NotFilter filter) {
+            Predicate<Candidate> predicate = filter.getFilter().accept(this, attributes);
+            return predicate == null ? null : predicate.negate();
+        }
+
+        @Override
+        public Predicate<Candidate> visitEqualsFilter(final Set<String> attributes, final EqualsFilter filter) {
+            List<Object> expected = filter.getAttribute().getValue() == null
+                    ? Collections.emptyList()
+                    : filter.getAttribute().getValue();
+            return values(filter, attributes).andThen(expected::equals)::apply;
+        }
+
+        @Override
+        public Predicate<Candidate> visitEqualsIgnoreCaseFilter(
+                final Set<String> attributes, final EqualsIgnoreCaseFilter filter) {
+
+            return string(filter, attributes, filter.getValue(), String::equalsIgnoreCase);
+        }
+
+        @Override
+        public Predicate<Candidate> visitContainsFilter(final Set<String> attributes, final ContainsFilter filter) {
+            return string(filter, attributes, filter.getValue(), String::contains);
+        }
+
+        @Override
+        public Predicate<Candidate> visitStartsWithFilter(final Set<String> attributes, final StartsWithFilter filter) {
+            return string(filter, attributes, filter.getValue(), String::startsWith);
+        }
+
+        @Override
+        public Predicate<Candidate> visitEndsWithFilter(final Set<String> attributes, final EndsWithFilter filter) {
+            return string(filter, attributes, filter.getValue(), String::endsWith);
+        }
+
+        @Override
+        public Predicate<Candidate> visitContainsAllValuesFilter(
+                final Set<String> attributes, final ContainsAllValuesFilter filter) {
+
+            List<Object> expected = filter.getAttribute().getValue() == null
+                    ? Collections.emptyList()
+                    : filter.getAttribute().getValue();
+            return values(filter, attributes).andThen(actual -> actual.containsAll(expected))::apply;
+        }
+
+        @Override
+        public Predicate<Candidate> visitGreaterThanFilter(
+                final Set<String> attributes, final GreaterThanFilter filter) {
+
+            return compare(filter, attributes, filter.getValue(), result -> result > 0);
+        }
+
+        @Override
+        public Predicate<Candidate> visitGreaterThanOrEqualFilter(
+                final Set<String> attributes, final GreaterThanOrEqualFilter filter) {
+
+            return compare(filter, attributes, filter.getValue(), result -> result >= 0);
+        }
+
+        @Override
+        public Predicate<Candidate> visitLessThanFilter(final Set<String> attributes, final LessThanFilter filter) {
+            return compare(filter, attributes, filter.getValue(), result -> result < 0);
+        }
+
+        @Override
+        public Predicate<Candidate> visitLessThanOrEqualFilter(
+                final Set<String> attributes, final LessThanOrEqualFilter filter) {
+
+            return compare(filter, attributes, filter.getValue(), result -> result <= 0);
+        }
+
+        @Override
+        public Predicate<Candidate> visitExtendedFilter(final Set<String> attributes, final Filter filter) {
+            // not even a placeholder, which would turn into its opposite once negated
+            return null;
+        }
+
+        private static Predicate<Candidate> string(final AttributeFilter filter, final Set<String> attributes,
+                final String expected, final BiPredicate<String, String> test) {
+
+            Function<Candidate, List<Object>> values = values(filter, attributes);
+            return candidate -> {
+                List<Object> actual = values.apply(candidate);
+                return expected != null && !actual.isEmpty() && actual.get(0) instanceof String
+                        && test.test((String) actual.get(0), expected);
+            };
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private static Predicate<Candidate> compare(final AttributeFilter filter, final Set<String> attributes,
+                final Object expected, final Predicate<Integer> test) {
+
+            Function<Candidate, List<Object>> values = values(filter, attributes);
+            return candidate -> {
+                List<Object> actual = values.apply(candidate);
+                if (expected == null || actual.isEmpty() || actual.get(0) == null) {
+                    return false;
+                }
+                Object value = actual.get(0);
+                return value instanceof Comparable && value.getClass().isInstance(expected)
+                        ? test.test(((Comparable) value).compareTo(expected))
+                        : test.test(value.toString().compareTo(expected.toString()));
+            };
+        }
+
+        private static Function<Candidate, List<Object>> values(
+                final AttributeFilter filter, final Set<String> attributes) {
+
+            Attribute attribute = filter.getAttribute();
+            if (attribute.is(Uid.NAME) || attribute.is(SCIMv11Attributes.USER_ATTRIBUTE_ID)) {
+                return candidate -> single(candidate.getUser().getId());
+            }
+            if (attribute.is(Name.NAME) || attribute.is(SCIMv11Attributes.USER_ATTRIBUTE_USERNAME)) {
+                return candidate -> single(candidate.getUser().getUserName());
+            }
+            if (attribute.is(OperationalAttributes.ENABLE_NAME)
+                    || attribute.is(SCIMv11Attributes.USER_ATTRIBUTE_ACTIVE)) {
+
+                attributes.add(SCIMv11Attributes.USER_ATTRIBUTE_ACTIVE);
+                return candidate -> single(candidate.getUser().getActive());
+            }
+
+            String name = attribute.getName();
+            attributes.add(name);
+            switch (name) {
+                case SCIMv11Attributes.USER_ATTRIBUTE_EXTERNAL_ID:
+                    return candidate -> single(candidate.getUser().getExternalId());
+
+                case "displayName":
+                    return candidate -> single(candidate.getUser().getDisplayName());
+
+                case "nickName":
+                    return candidate -> single(candidate.getUser().getNickName());
+
+                case "title":
+                    return candidate -> single(candidate.getUser().getTitle());
+
+                case "userType":
+                    return candidate -> single(candidate.getUser().getUserType());
+
+                default:
+                    return candidate -> {
+                        List<Object> values = candidate.getUser().getReturnedCustomAttributes().get(name);
+                        return values == null ? attributeValues(candidate, name) : values;
+                    };
+            }
+        }
+
+        private static List<Object> single(final Object value) {
+            return value == null ? Collections.emptyList() : Collections.singletonList(value);
+        }
+
+        private static List<Object> attributeValues(final Candidate candidate, final String name) {
+            try {
+                for (Attribute attribute : candidate.getAttributes()) {
+                    if (attribute.is(name)) {
+                        return attribute.getValue() == null ? Collections.emptyList() : attribute.getValue();
+                    }
+                }
+            } catch (IllegalArgumentException | IllegalAccessException e) {
+                LOG.error(e, "While reading attribute {0}", name);
+            }
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,417 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import net.tirasa.connid.bundles.scimv11.dto.SCIMSchema;
+import net.tirasa.connid.bundles.scimv11.service.FilterCapabilities;
+import net.tirasa.connid.bundles.scimv11.utils.SCIMv11Attributes;
+import net.tirasa.connid.bundles.scimv11.utils.SCIMv11Utils;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.AbstractFilterTranslator;
+import org.identityconnectors.framework.common.objects.filter.AttributeFilter;
+import org.identityconnectors.framework.common.objects.filter.ContainsFilter;
+import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.common.objects.filter.EqualsIgnoreCaseFilter;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.GreaterThanFilter;
+import org.identityconnectors.framework.common.objects.filter.GreaterThanOrEqualFilter;
+import org.identityconnectors.framework.common.objects.filter.LessThanFilter;
+import org.identityconnectors.framework.common.objects.filter.LessThanOrEqualFilter;
+import org.identityconnectors.framework.common.objects.filter.StartsWithFilter;
+
+/**
+ * Translates ConnId filters to SCIM 1.1 filter expressions, to be evaluated by the service.
+ * Filters (or parts of them) which cannot be expressed are left out: results are filtered again by the framework.
+ */
+public class SCIMv11FilterTranslator extends AbstractFilterTranslator<String> {
+
+    /**
+     * Attributes which can be used in filter expressions as they are named in schema.
+     */
+    private static final Set<String> FILTERABLE_ATTRIBUTES = new HashSet<>(Arrays.asList(
+            SCIMv11Attributes.USER_ATTRIBUTE_ID,
+            SCIMv11Attributes.USER_ATTRIBUTE_EXTERNAL_ID,
+            SCIMv11Attributes.USER_ATTRIBUTE_USERNAME,
+            SCIMv11Attributes.USER_ATTRIBUTE_ACTIVE,
+            "name.formatted",
+            "name.familyName",
+            "name.givenName",
+            "name.middleName",
+            "name.honorificPrefix",
+            "name.honorificSuffix",
+            "displayName",
+            "nickName",
+            "profileUrl",
+            "title",
+            "userType",
+            "locale",
+            "preferredLanguage",
+            "timezone",
+            "meta.created",
+            "meta.lastModified",
+            "meta.location",
+            "meta.version"));
+
+    /**
+     * Attributes compared case sensitively by the service, as {@code caseExact} in schema.
+     */
+    private static final Set<String> CASE_EXACT_ATTRIBUTES = new HashSet<>(Arrays.asList(
+            SCIMv11Attributes.USER_ATTRIBUTE_ID,
+            SCIMv11Attributes.USER_ATTRIBUTE_EXTERNAL_ID));
+
+    /**
+     * Multi-valued attributes, flattened in schema as {@code attribute.type.subAttribute}, with the sub-attributes
+     * which can be used in filter expressions.
+     */
+    private static final Map<String, Set<String>> MULTI_VALUED_ATTRIBUTES = new HashMap<>();
+
+    static {
+        Set<String> valueSubAttributes = new HashSet<>(Arrays.asList("value", "primary"));
+        MULTI_VALUED_ATTRIBUTES.put(SCIMv11Attributes.SCIM_USER_EMAILS, valueSubAttributes);
+        MULTI_VALUED_ATTRIBUTES.put(SCIMv11Attributes.SCIM_USER_PHONE_NUMBERS, valueSubAttributes);
+        MULTI_VALUED_ATTRIBUTES.put(SCIMv11Attributes.SCIM_USER_IMS, valueSubAttributes);
+        MULTI_VALUED_ATTRIBUTES.put(SCIMv11Attributes.SCIM_USER_PHOTOS, valueSubAttributes);
+        MULTI_VALUED_ATTRIBUTES.put(SCIMv11Attributes.SCIM_USER_GROUPS, valueSubAttributes);
+        MULTI_VALUED_ATTRIBUTES.put(SCIMv11Attributes.SCIM_USER_ROLES, valueSubAttributes);
+        MULTI_VALUED_ATTRIBUTES.put(SCIMv11Attributes.SCIM_USER_ENTITLEMENTS, valueSubAttributes);
+        MULTI_VALUED_ATTRIBUTES.put(SCIMv11Attributes.SCIM_USER_X509CERTIFICATES, valueSubAttributes);
+        MULTI_VALUED_ATTRIBUTES.put(SCIMv11Attributes.SCIM_USER_ADDRESSES, new HashSet<>(Arrays.asList(
+                "streetAddress", "locality", "region", "postalCode", "country", "formatted", "primary")));
+    }
+
+    /**
+     * Type of multi-valued attributes with no actual type, as flattened in schema.
+     */
+    private static final String DEFAULT_TYPE = "default";
+
+    /**
+     * Custom attributes, or null if none.
+     */
+    private final SCIMSchema customSchema;
+
+    /**
+     * Operators and attributes rejected by the service, or null if all are supported.
+     */
+    private final FilterCapabilities capabilities;
+
+    /**
+     * Comparisons in the expressions created so far.
+     */
+    private final List<Comparison> comparisons = new ArrayList<>();
+
+    /**
+     * Logical operators in the expressions created so far.
+     */
+    private final List<String> logicalOperators = new ArrayList<>();
+
+    /**
+     * Expressions created so far: each filter is created more than once while translating, but recorded only once.
+     */
+    private final Set<String> expressions = new HashSet<>();
+
+    public SCIMv11FilterTranslator() {
+        this(null, null);
+    }
+
+    /**
+     * @param customSchema custom attributes, as parsed from configuration, to be also used in filter expressions
+     * @param capabilities operators and attributes rejected by the service, not to be used in filter expressions
+     */
+    public SCIMv11FilterTranslator(final SCIMSchema customSchema, final FilterCapabilities capabilities) {
+        this.customSchema = customSchema;
+        this.capabilities = capabilities;
+    }
+
+    /**
+     * Translates the given filter as a whole.
+     *
+     * @param filter filter, or null
+     * @return SCIM filter expression for the given filter, or null if there is none
+     */
+    public String toFilterQuery(final Filter filter) {
+        List<String> queries = filter == null
+                ? Collections.<String>emptyList()
+                : translate(filter);
+        // more queries are returned when OR is not supported, none of which can be pushed down on its own
+        return queries.size() == 1 ? queries.get(0) : null;
+    }
+
+    /**
+     * @return distinct comparisons in the expressions created so far by this translator
+     */
+    public List<Comparison> getComparisons() {
+        return Collections.unmodifiableList(comparisons);
+    }
+
+    /**
+     * @return logical operators in the expressions created so far by this translator, once per distinct
+     * expression combined
+     */
+    public List<String> getLogicalOperators() {
+        return Collections.unmodifiableList(logicalOperators);
+    }
+
+    /**
+     * Tells whether the SCIM filter expression for the given attribute filter may also match Users not matching it.
+     * This is the case with multi-valued attributes, as SCIM 1.1 cannot require that value and type conditions hold
+     * on the same element.
+     *
+     * @param filter attribute filter
+     * @return whether the filter shall also be evaluated on the Users returned
+     */
+    public static boolean isApproximate(final AttributeFilter filter) {
+        return getMultiValuedPath(filter.getAttribute().getName()) != null;
+    }
+
+    @Override
+    protected String createAndExpression(final String leftExpression, final String rightExpression) {
+        return combine(leftExpression, "and", rightExpression);
+    }
+
+    @Override
+    protected String createOrExpression(final String leftExpression, final String rightExpression) {
+        return combine(leftExpression, "or", rightExpression);
+    }
+
+    @Override
+    protected String createEqualsExpression(final EqualsFilter filter, final boolean not) {
+        String path = getPath(filter);
+        if (path == null) {
+            return null;
+        }
+
+        List<Object> values = filter.getAttribute().getValue();
+        if (values == null || values.isEmpty()) {
+            // attribute with no values: only its negation, i.e. presence, can be expressed
+            return not ? createExpression(filter, "pr", null) : null;
+        }
+        return not || values.size() > 1 ? null : createExpression(filter, "eq", values.get(0));
+    }
+
+    @Override
+    protected String createEqualsIgnoreCaseExpression(final EqualsIgnoreCaseFilter filter, final boolean not) {
+        // SCIM string comparisons are case insensitive, unless the attribute is case exact: the service would then
+        // miss Users matching but for case, which cannot be found again by filtering the results
+        String path = getPath(filter);
+        return not || path == null || isCaseExact(path) ? null : createExpression(filter, "eq", filter.getValue());
+    }
+
+    @Override
+    protected String createContainsExpression(final ContainsFilter filter, final boolean not) {
+        return not ? null : createExpression(filter, "co", filter.getValue());
+    }
+
+    @Override
+    protected String createStartsWithExpression(final StartsWithFilter filter, final boolean not) {
+        return not ? null : createExpression(filter, "sw", filter.getValue());
+    }
+
+    // negated comparisons are not translated, as they also hold when the attribute is missing
+
+    @Override
+    protected String createGreaterThanExpression(final GreaterThanFilter filter, final boolean not) {
+        return not ? null : createExpression(filter, "gt", filter.getValue());
+    }
+
+    @Override
+    protected String createGreaterThanOrEqualExpression(final GreaterThanOrEqualFilter filter, final boolean not) {
+        return not ? null : createExpression(filter, "ge", filter.getValue());
+    }
+
+    @Override
+    protected String createLessThanExpression(final LessThanFilter filter, final boolean not) {
+        return not ? null : createExpression(filter, "lt", filter.getValue());
+    }
+
+    @Override
+    protected String createLessThanOrEqualExpression(final LessThanOrEqualFilter filter, final boolean not) {
+        return not ? null : createExpression(filter, "le", filter.getValue());
+    }
+
+    /**
+     * Single-valued attributes only can be used to sort, as for multi-valued ones SCIM 1.1 sorts by the primary value,
+     * whatever its type.
+     *
+     * @param name attribute name
+     * @return path to be used as {@code sortBy}, or null if the given attribute cannot be sorted by the service
+     */
+    public String getSortPath(final String name) {
+        return getMultiValuedPath(name) == null ? getPath(name) : null;
+    }
+
+    private String getPath(final AttributeFilter filter) {
+        return getPath(filter.getAttribute().getName());
+    }
+
+    private String getPath(final String name) {
+        if (Uid.NAME.equalsIgnoreCase(name)) {
+            return SCIMv11Attributes.USER_ATTRIBUTE_ID;
+        }
+        if (Name.NAME.equalsIgnoreCase(name)) {
+            return SCIMv11Attributes.USER_ATTRIBUTE_USERNAME;
+        }
+        if (OperationalAttributes.ENABLE_NAME.equalsIgnoreCase(name)) {
+            return SCIMv11Attributes.USER_ATTRIBUTE_ACTIVE;
+        }
+        if (FILTERABLE_ATTRIBUTES.contains(name)) {
+            return name;
+        }
+        String[] multiValuedPath = getMultiValuedPath(name);
+        if (multiValuedPath != null) {
+            return multiValuedPath[0] + "." + multiValuedPath[2];
+        }
+        return isCustomAttribute(name) ? name : null;
+    }
+
+    /**
+     * Custom attributes are named in schema as {@code schema.name}, i.e. as the fully qualified path of extension
+     * attributes in SCIM 1.1 filter expressions; complex ones cannot be compared as a whole.
+     *
+     * @param name attribute name
+     * @return whether the given name is one of a simple custom attribute
+     */
+    private boolean isCustomAttribute(final String name) {
+        return customSchema != null && customSchema.getAttributes().stream().anyMatch(
+                attribute -> !SCIMv11Attributes.SCIM_SCHEMA_TYPE_COMPLEX.equals(attribute.getType())
+                && name.equals(attribute.getSchema() + "." + attribute.getName()));
+    }
+
+    private boolean isCaseExact(final String path) {
+        return CASE_EXACT_ATTRIBUTES.contains(path)
+                || (customSchema != null && customSchema.getAttributes().stream().anyMatch(
+                        attribute -> Boolean.TRUE.equals(attribute.getCaseExact())
+                        && path.equals(attribute.getSchema() + "." + attribute.getName())));
+    }
+
+    /**
+     * Splits flattened multi-valued attribute names as {@code emails.work.value}.
+     *
+     * @param name attribute name
+     * @return attribute, type and sub-attribute, or null if the given name is not a filterable multi-valued one
+     */
+    private static String[] getMultiValuedPath(final String name) {
+        String[] path = name.split("\\.");
+        return path.length == 3
+                && MULTI_VALUED_ATTRIBUTES.containsKey(path[0])
+                && MULTI_VALUED_ATTRIBUTES.get(path[0]).contains(path[2])
+                ? path : null;
+    }
+
+    private boolean isSupported(final String operator) {
+        return capabilities == null || capabilities.isSupported(operator);
+    }
+
+    private String combine(final String leftExpression, final String operator, final String rightExpression) {
+        if (!isSupported(operator)) {
+            return null;
+        }
+        String expression = "(" + leftExpression + " " + operator + " " + rightExpression + ")";
+        if (expressions.add(expression)) {
+            logicalOperators.add(operator);
+        }
+        return expression;
+    }
+
+    /**
+     * @param filter attribute filter
+     * @param operator SCIM comparison operator
+     * @param value value to compare with, or null for the presence operator
+     * @return expression, or null if it cannot be created or is not supported by the service
+     */
+    private String createExpression(final AttributeFilter filter, final String operator, final Object value) {
+        String path = getPath(filter);
+        if (path == null || (value == null && !"pr".equals(operator))
+                || (capabilities != null && !capabilities.isSupported(path, operator))) {
+
+            return null;
+        }
+
+        String filterValue = value == null ? null : SCIMv11Utils.toFilterValue(value);
+        String expression = filterValue == null
+                ? path + " " + operator
+                : path + " " + operator + " " + filterValue;
+        if (expressions.add(expression)) {
+            comparisons.add(new Comparison(path, operator, filterValue, expression));
+        }
+        return qualify(filter, expression);
+    }
+
+    /**
+     * Adds the type condition to expressions on typed multi-valued attributes; these are anyway evaluated again on
+     * the Users returned, so that the condition is left out when AND is not supported.
+     */
+    private String qualify(final AttributeFilter filter, final String expression) {
+        String[] multiValuedPath = getMultiValuedPath(filter.getAttribute().getName());
+        if (multiValuedPath == null || DEFAULT_TYPE.equals(multiValuedPath[1])) {
+            return expression;
+        }
+
+        String qualified = combine(expression, "and",
+                multiValuedPath[0] + ".type eq " + SCIMv11Utils.toFilterValue(multiValuedPath[1]));
+        return qualified == null ? expression : qualified;
+    }
+
+    /**
+     * Single comparison in a filter expression, which can be sent on its own to check whether the service supports
+     * it.
+     */
+    public static final class Comparison {
+
+        private final String path;
+
+        private final String operator;
+
+        private final String value;
+
+        private final String expression;
+
+        private Comparison(final String path, final String operator, final String value, final String expression) {
+            this.path = path;
+            this.operator = operator;
+            this.value = value;
+            this.expression = expression;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getOperator() {
+            return operator;
+        }
+
+        /**
+         * @return value compared with, as in filter expressions, or null for the presence operator
+         */
+        public String getValue() {
+            return value;
+        }
+
+        public String getExpression() {
+            return expression;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Locally sorted search results kept between pages, so that each following page is replayed from the sorted runs
+ * instead of reading and sorting all Users again.
+ *
+ * Results are handed over: whoever takes them owns them until put back, so they are never replayed concurrently.
+ * Results not taken within the given time, or in excess of {@link #MAX_SIZE}, are discarded.
+ */
+final class SCIMv11SortedResults implements AutoCloseable {
+
+    private static final Log LOG = Log.getLog(SCIMv11SortedResults.class);
+
+    /**
+     * Maximum number of sorted results kept, each holding up to {@code sortBufferSize} objects in memory.
+     */
+    static final int MAX_SIZE = 4;
+
+    private final long ttl;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * @param ttl how long sorted results are kept, in milliseconds
+     */
+    SCIMv11SortedResults(final long ttl) {
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    /**
+     * Keeps the given sorted results, evicting the oldest ones if needed.
+     *
+     * @param sorter sorted results, no longer owned by the caller
+     * @return key to take the given sorted results back
+     */
+    synchronized String put(final SCIMv11ExternalSorter sorter) {
+        expire();
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() >= MAX_SIZE && eldest.hasNext()) {
+            eldest.next().sorter.close();
+            eldest.remove();
+        }
+
+        String key = UUID.randomUUID().toString();
+        entries.put(key, new Entry(sorter, System.nanoTime() + ttl));
+        return key;
+    }
+
+    /**
+     * @param key key returned when sorted results were put
+     * @return sorted results, now owned by the caller, or null if discarded meanwhile
+     */
+    synchronized SCIMv11ExternalSorter take(final String key) {
+        expire();
+        Entry entry = entries.remove(key);
+        return entry == null ? null : entry.sorter;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        entries.values().forEach(entry -> entry.sorter.close());
+        entries.clear();
+    }
+
+    private void expire() {
+        long now = System.nanoTime();
+        for (Iterator<Entry> itor = entries.values().iterator(); itor.hasNext();) {
+            Entry entry = itor.next();
+            if (now - entry.expiration >= 0) {
+                LOG.ok("Discarding {0} sorted results not asked for", entry.sorter.getCount());
+                entry.sorter.close();
+                itor.remove();
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final SCIMv11ExternalSorter sorter;
+
+        private final long expiration;
+
+        private Entry(final SCIMv11ExternalSorter sorter, final long expiration) {
+            this.sorter = sorter;
+            this.expiration = expiration;
+        }
+    }
+}
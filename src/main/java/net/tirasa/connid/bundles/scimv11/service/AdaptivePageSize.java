@@ -0,0 +1,83 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import net.tirasa.connid.bundles.scimv11.SCIMv11ConnectorConfiguration;
+
+/**
+ * Page size which follows, within configured bounds, the number of users fitting in the target response time and
+ * body size, as measured on the pages read so far.
+ */
+class AdaptivePageSize {
+
+    private final int min;
+
+    private final int max;
+
+    private final long targetTime;
+
+    private final long targetBytes;
+
+    private int current;
+
+    AdaptivePageSize(final SCIMv11ConnectorConfiguration config) {
+        this.min = config.getMinPageSize();
+        this.max = config.getMaxPageSize();
+        this.targetTime = config.getPageTargetTime();
+        this.targetBytes = config.getPageTargetBytes();
+        this.current = bound(config.getPageSize());
+    }
+
+    public int get() {
+        return current;
+    }
+
+    /**
+     * Adjusts page size after a page was read.
+     *
+     * @param read number of users read
+     * @param time milliseconds taken by the service to return them
+     * @param bytes response body size, or -1 if unknown
+     */
+    public void update(final int read, final long time, final long bytes) {
+        if (read == 0) {
+            return;
+        }
+
+        double ratio = (double) targetTime / Math.max(time, 1L);
+        if (bytes > 0) {
+            ratio = Math.min(ratio, (double) targetBytes / bytes);
+        }
+        // at most double or halve at once, not to over-react to a single slow or fast page
+        long next = Math.round(read * Math.max(0.5, Math.min(2.0, ratio)));
+        current = bound((int) Math.min(Integer.MAX_VALUE, Math.max(next, current / 2)));
+    }
+
+    /**
+     * Halves page size after a page was too big to be returned in time.
+     *
+     * @return whether page size was actually reduced, false if already at minimum
+     */
+    public boolean shrink() {
+        int previous = current;
+        current = bound(current / 2);
+        return current < previous;
+    }
+
+    private int bound(final int size) {
+        return Math.max(min, Math.min(max, size));
+    }
+}
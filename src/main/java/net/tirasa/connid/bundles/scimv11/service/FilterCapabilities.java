@@ -0,0 +1,146 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Filter operators and attributes rejected by the service, as found out by sending minimal filter expressions, so
+ * that unsupported filter expressions are not sent again; rejections are forgotten after a while, as the service
+ * may be upgraded or reconfigured meanwhile.
+ */
+public final class FilterCapabilities {
+
+    private static final Log LOG = Log.getLog(FilterCapabilities.class);
+
+    /**
+     * Number of attributes an operator shall be rejected on, before it is considered rejected on any attribute.
+     */
+    private static final int GENERALIZATION_THRESHOLD = 2;
+
+    private final long ttl;
+
+    /**
+     * Expiration of each rejected comparison, as {@code path operator}.
+     */
+    private final Map<String, Long> rejectedTerms = new ConcurrentHashMap<>();
+
+    /**
+     * Expiration of each operator rejected on any attribute.
+     */
+    private final Map<String, Long> rejectedOperators = new ConcurrentHashMap<>();
+
+    /**
+     * Expiration of each attribute which cannot be filtered at all.
+     */
+    private final Map<String, Long> rejectedPaths = new ConcurrentHashMap<>();
+
+    /**
+     * @param ttl how long (in milliseconds) rejections are remembered
+     */
+    public FilterCapabilities(final long ttl) {
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    /**
+     * @param path attribute path, as in filter expressions
+     * @param operator comparison operator
+     * @return whether the given comparison was not rejected so far
+     */
+    public boolean isSupported(final String path, final String operator) {
+        return !isRejected(rejectedOperators, operator)
+                && !isRejected(rejectedPaths, path)
+                && !isRejected(rejectedTerms, term(path, operator));
+    }
+
+    /**
+     * @param operator logical operator, i.e. {@code and} or {@code or}
+     * @return whether the given logical operator was not rejected so far
+     */
+    public boolean isSupported(final String operator) {
+        return !isRejected(rejectedOperators, operator);
+    }
+
+    /**
+     * Records that the service rejected the given comparison, although accepting other comparisons on the same
+     * attribute.
+     *
+     * @param path attribute path, as in filter expressions
+     * @param operator comparison operator
+     */
+    public void reject(final String path, final String operator) {
+        LOG.info("Filter operator {0} on {1} rejected by service", operator, path);
+
+        long expiration = expiration();
+        rejectedTerms.put(term(path, operator), expiration);
+        if (rejectedTerms.keySet().stream()
+                .filter(term -> term.endsWith(" " + operator) && isRejected(rejectedTerms, term))
+                .count() >= GENERALIZATION_THRESHOLD) {
+
+            LOG.info("Filter operator {0} rejected by service", operator);
+            rejectedOperators.put(operator, expiration);
+        }
+    }
+
+    /**
+     * Records that the service rejected the given logical operator.
+     *
+     * @param operator logical operator, i.e. {@code and} or {@code or}
+     */
+    public void reject(final String operator) {
+        LOG.info("Filter operator {0} rejected by service", operator);
+        rejectedOperators.put(operator, expiration());
+    }
+
+    /**
+     * Records that the service rejected any comparison on the given attribute.
+     *
+     * @param path attribute path, as in filter expressions
+     */
+    public void rejectPath(final String path) {
+        LOG.info("Filter on {0} rejected by service", path);
+        rejectedPaths.put(path, expiration());
+    }
+
+    /**
+     * Forgets all the rejections recorded so far.
+     */
+    public void clear() {
+        rejectedTerms.clear();
+        rejectedOperators.clear();
+        rejectedPaths.clear();
+    }
+
+    private long expiration() {
+        return System.nanoTime() + ttl;
+    }
+
+    private static boolean isRejected(final Map<String, Long> rejections, final String key) {
+        Long expiration = rejections.get(key);
+        if (expiration != null && System.nanoTime() - expiration > 0) {
+            rejections.remove(key, expiration);
+            expiration = null;
+        }
+        return expiration != null;
+    }
+
+    private static String term(final String path, final String operator) {
+        return path + " " + operator;
+    }
+}
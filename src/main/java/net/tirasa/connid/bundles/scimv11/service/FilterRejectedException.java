@@ -0,0 +1,34 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+public class FilterRejectedException extends ConnectorException {
+
+    private static final long serialVersionUID = -4170412869521580364L;
+
+    /**
+     * Constructs a new FilterRejectedException with the specified error message.
+     *
+     * @param message
+     * Describes the error encountered.
+     */
+    public FilterRejectedException(final String message) {
+        super(message);
+    }
+
+}
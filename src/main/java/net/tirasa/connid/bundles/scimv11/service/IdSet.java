@@ -0,0 +1,83 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+/**
+ * Set of ids, kept as 64-bit hashes in an open addressing table: a few bytes per id, whatever its length, so that
+ * all the ids met during a full scan can be remembered.
+ */
+class IdSet {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private long[] table = new long[1024];
+
+    private int size = 0;
+
+    /**
+     * Adds the given id.
+     *
+     * @param id id
+     * @return true if the id was not already there
+     */
+    public boolean add(final String id) {
+        long hash = hash(id);
+        if (!insert(table, hash)) {
+            return false;
+        }
+
+        size++;
+        if (size * 2 > table.length) {
+            long[] larger = new long[table.length * 2];
+            for (long value : table) {
+                if (value != 0) {
+                    insert(larger, value);
+                }
+            }
+            table = larger;
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static boolean insert(final long[] table, final long hash) {
+        int mask = table.length - 1;
+        int index = (int) (hash ^ (hash >>> 32)) & mask;
+        while (table[index] != 0) {
+            if (table[index] == hash) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        table[index] = hash;
+        return true;
+    }
+
+    private static long hash(final String id) {
+        // FNV-1a, 0 being reserved for empty slots
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
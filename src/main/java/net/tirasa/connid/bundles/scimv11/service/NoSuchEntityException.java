@@ -31,4 +31,28 @@ public class NoSuchEntityException extends ConnectorException {
         super(message);
     }
 
+    /**
+     * Missing entities are an expected outcome of lookups, signaled with no stack trace to keep them cheap.
+     *
+     * @param message
+     * Describes the entity not found.
+     * @return exception with no stack trace
+     */
+    public static NoSuchEntityException notFound(final String message) {
+        return new NotFound(message);
+    }
+
+    private static final class NotFound extends NoSuchEntityException {
+
+        private static final long serialVersionUID = -6455389637311226150L;
+
+        private NotFound(final String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
 }
@@ -0,0 +1,111 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ids and userNames recently looked up with no User found, so that lookups repeated shortly after are answered
+ * with no request to the service.
+ */
+class NotFoundCache {
+
+    /**
+     * Maximum number of entries: when exceeded, the least recently used ones are evicted.
+     */
+    private static final int MAX_SIZE = 10000;
+
+    private final long ttl;
+
+    private final Map<String, Long> expirations = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 4512437616096180916L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    /**
+     * @param ttlSeconds how long (in seconds) an id or userName is remembered as not found
+     */
+    NotFoundCache(final int ttlSeconds) {
+        this.ttl = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    public boolean isIdNotFound(final String id) {
+        return isNotFound(idKey(id));
+    }
+
+    public boolean isUserNameNotFound(final String userName) {
+        return isNotFound(userNameKey(userName));
+    }
+
+    public void idNotFound(final String id) {
+        notFound(idKey(id));
+    }
+
+    public void userNameNotFound(final String userName) {
+        notFound(userNameKey(userName));
+    }
+
+    /**
+     * @param id id of a User just created, or null
+     * @param userName userName of a User just created or renamed, or null
+     */
+    public void found(final String id, final String userName) {
+        synchronized (expirations) {
+            if (id != null) {
+                expirations.remove(idKey(id));
+            }
+            if (userName != null) {
+                expirations.remove(userNameKey(userName));
+            }
+        }
+    }
+
+    private boolean isNotFound(final String key) {
+        synchronized (expirations) {
+            Long expiration = expirations.get(key);
+            if (expiration != null && System.nanoTime() - expiration > 0) {
+                expirations.remove(key);
+                expiration = null;
+            }
+            return expiration != null;
+        }
+    }
+
+    private void notFound(final String key) {
+        synchronized (expirations) {
+            expirations.put(key, System.nanoTime() + ttl);
+        }
+    }
+
+    private static String idKey(final String id) {
+        return "id:" + id;
+    }
+
+    /**
+     * userNames are matched ignoring case, as compared by SCIM services.
+     */
+    private static String userNameKey(final String userName) {
+        return "userName:" + userName.toLowerCase(Locale.ROOT);
+    }
+}
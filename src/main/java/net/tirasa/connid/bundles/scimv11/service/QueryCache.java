@@ -0,0 +1,197 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import net.tirasa.connid.bundles.scimv11.dto.PagedResults;
+import net.tirasa.connid.bundles.scimv11.dto.User;
+
+/**
+ * Results of filtered list requests, by request parameters: entries expire after the configured time, so that only
+ * identical requests repeated shortly after are not sent again; any change through the connector drops them all.
+ *
+ * Only results returned whole in a single page are kept, so that scans reading many pages never fill the cache.
+ */
+class QueryCache {
+
+    /**
+     * Maximum number of results: when exceeded, the least recently used ones are evicted.
+     */
+    static final int MAX_SIZE = 100;
+
+    /**
+     * Maximum number of Users over all results: when exceeded, the least recently used ones are evicted.
+     */
+    static final int MAX_USERS = 10000;
+
+    private static final String ATTRIBUTES = "attributes";
+
+    private final long ttl;
+
+    private final Map<Map<String, String>, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private int users = 0;
+
+    /**
+     * Incremented by each invalidation, so that pages requested before are not cached afterwards.
+     */
+    private long generation = 0;
+
+    /**
+     * @param ttlSeconds how long (in seconds) a page is kept
+     */
+    QueryCache(final int ttlSeconds) {
+        this.ttl = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    /**
+     * Requested attributes are listed in no particular order: they are sorted, so that the same request always
+     * matches the same entry.
+     */
+    private static Map<String, String> key(final Map<String, String> params) {
+        Map<String, String> key = new HashMap<>(params);
+        String attributes = key.get(ATTRIBUTES);
+        if (attributes != null) {
+            String[] sorted = attributes.split(",");
+            Arrays.sort(sorted);
+            key.put(ATTRIBUTES, String.join(",", sorted));
+        }
+        return key;
+    }
+
+    /**
+     * @param params list request parameters
+     * @return whether the results of the given request may be cached: it is filtered and asks for the first page
+     */
+    static boolean isCacheable(final Map<String, String> params) {
+        return params.containsKey("filter")
+                && (!params.containsKey("startIndex") || Integer.parseInt(params.get("startIndex")) <= 1);
+    }
+
+    private static boolean isWholeResult(
+            final Map<String, String> params, final PagedResults<User> metadata, final List<User> users) {
+
+        if (!isCacheable(params)) {
+            return false;
+        }
+        if (metadata.getTotalResults() > 0) {
+            return users.size() >= metadata.getTotalResults();
+        }
+        // no total reported: only a page with less Users than requested is known to be the last one
+        return !params.containsKey("count") || users.size() < Integer.parseInt(params.get("count"));
+    }
+
+    /**
+     * @param params list request parameters
+     * @return cached page, not to be modified, or null if not cached or expired
+     */
+    public PagedResults<User> get(final Map<String, String> params) {
+        Map<String, String> key = key(params);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && System.nanoTime() - entry.expiration > 0) {
+                remove(key);
+                entry = null;
+            }
+            return entry == null ? null : entry.page;
+        }
+    }
+
+    /**
+     * @return value to pass to {@link #put(Map, PagedResults, List, long)} for a page about to be requested
+     */
+    public long getGeneration() {
+        synchronized (entries) {
+            return generation;
+        }
+    }
+
+    /**
+     * Keeps the given page, unless it does not hold the whole result of a filtered request.
+     *
+     * @param params list request parameters
+     * @param metadata list response metadata
+     * @param users Users in the page
+     * @param requested value of {@link #getGeneration()} as the page was requested
+     */
+    public void put(final Map<String, String> params, final PagedResults<User> metadata, final List<User> users,
+            final long requested) {
+
+        if (users.size() > MAX_USERS || !isWholeResult(params, metadata, users)) {
+            return;
+        }
+
+        PagedResults<User> page = new PagedResults<>();
+        page.setTotalResults(metadata.getTotalResults());
+        page.setItemsPerPage(metadata.getItemsPerPage());
+        page.setStartIndex(metadata.getStartIndex());
+        page.getResources().addAll(users);
+
+        Map<String, String> key = key(params);
+        synchronized (entries) {
+            if (requested == generation) {
+                remove(key);
+                entries.put(key, new Entry(page, System.nanoTime() + ttl));
+                this.users += users.size();
+
+                Iterator<Entry> eldest = entries.values().iterator();
+                while ((entries.size() > MAX_SIZE || this.users > MAX_USERS) && eldest.hasNext()) {
+                    this.users -= eldest.next().page.getResources().size();
+                    eldest.remove();
+                }
+            }
+        }
+    }
+
+    public void invalidate() {
+        synchronized (entries) {
+            generation++;
+            entries.clear();
+            users = 0;
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void remove(final Map<String, String> key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            users -= entry.page.getResources().size();
+        }
+    }
+
+    private static final class Entry {
+
+        private final PagedResults<User> page;
+
+        private final long expiration;
+
+        private Entry(final PagedResults<User> page, final long expiration) {
+            this.page = page;
+            this.expiration = expiration;
+        }
+    }
+}
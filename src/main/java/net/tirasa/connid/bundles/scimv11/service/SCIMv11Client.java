@@ -15,14 +15,31 @@
  */
 package net.tirasa.connid.bundles.scimv11.service;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+import javax.ws.rs.core.UriBuilder;
 import net.tirasa.connid.bundles.scimv11.SCIMv11ConnectorConfiguration;
 import net.tirasa.connid.bundles.scimv11.dto.PagedResults;
 import net.tirasa.connid.bundles.scimv11.dto.User;
@@ -31,13 +48,68 @@ import net.tirasa.connid.bundles.scimv11.utils.SCIMv11Utils;
 import org.apache.cxf.jaxrs.client.WebClient;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.SortKey;
 
 public class SCIMv11Client extends SCIMv11Service {
 
     private static final Log LOG = Log.getLog(SCIMv11Client.class);
 
+    private static final long POLL_TIMEOUT = 100L;
+
+    /**
+     * Maximum number of values looked up with a single request.
+     */
+    static final int MAX_BATCH_SIZE = 50;
+
+    /**
+     * Maximum length of the URL-encoded filter expression used to look up values with a single request, so that
+     * the request URL stays within the limits commonly enforced by servers and proxies.
+     */
+    private static final int MAX_BATCH_FILTER_LENGTH = 4000;
+
+    private static final int OR_LENGTH = encodedLength(" or ");
+
+    /**
+     * How long (in milliseconds) filter operators and attributes rejected by the service are not used again.
+     */
+    private static final long FILTER_REJECTION_TTL = TimeUnit.HOURS.toMillis(1);
+
+    private final FilterCapabilities filterCapabilities = new FilterCapabilities(FILTER_REJECTION_TTL);
+
+    private volatile Boolean sortSupported;
+
+    private final UserLookupCoalescer lookupCoalescer;
+
+    private final UserCache userCache;
+
+    private final NotFoundCache notFoundCache;
+
+    private final QueryCache queryCache;
+
     public SCIMv11Client(final SCIMv11ConnectorConfiguration config) {
         super(config);
+        lookupCoalescer = config.getLookupBatchWindow() > 0
+                ? new UserLookupCoalescer(this, config.getLookupBatchWindow())
+                : null;
+        userCache = config.getUserCacheSize() > 0
+                ? new UserCache(config.getUserCacheSize(), config.getUserCacheTtl())
+                : null;
+        notFoundCache = config.getNotFoundCacheTtl() > 0
+                ? new NotFoundCache(config.getNotFoundCacheTtl())
+                : null;
+        queryCache = config.getQueryCacheTtl() > 0
+                ? new QueryCache(config.getQueryCacheTtl())
+                : null;
+    }
+
+    @Override
+    public void close() {
+        if (lookupCoalescer != null) {
+            lookupCoalescer.close();
+        }
+        filterCapabilities.clear();
+        super.close();
     }
 
     /**
@@ -46,10 +118,9 @@ public class SCIMv11Client extends SCIMv11Service {
      * @return List of Users
      */
     public List<User> getAllUsers(final Set<String> attributesToGet) {
-        WebClient webClient = getWebclient("Users", null);
-        Map<String, String> params = new HashMap<>();
-        params.put("attributes", SCIMv11Utils.cleanAttributesToGet(attributesToGet, config.getCustomAttributesJSON()));
-        return doGetAllUsers(webClient).getResources();
+        List<User> users = new ArrayList<>();
+        getAllUsers(null, attributesToGet, users::add);
+        return users;
     }
 
     /**
@@ -59,11 +130,7 @@ public class SCIMv11Client extends SCIMv11Service {
      * @return Filtered list of Users
      */
     public List<User> getAllUsers(final String filterQuery, final Set<String> attributesToGet) {
-        Map<String, String> params = new HashMap<>();
-        params.put("filter", filterQuery);
-        params.put("attributes", SCIMv11Utils.cleanAttributesToGet(attributesToGet, config.getCustomAttributesJSON()));
-        WebClient webClient = getWebclient("Users", params);
-        return doGetAllUsers(webClient).getResources();
+        return doGetAllUsers(buildParams(filterQuery, null, null, attributesToGet)).getResources();
     }
 
     /**
@@ -75,14 +142,7 @@ public class SCIMv11Client extends SCIMv11Service {
      */
     public PagedResults<User> getAllUsers(final Integer startIndex, final Integer count,
             final Set<String> attributesToGet) {
-        Map<String, String> params = new HashMap<>();
-        params.put("startIndex", String.valueOf(startIndex));
-        if (count != null) {
-            params.put("count", String.valueOf(count));
-        }
-        params.put("attributes", SCIMv11Utils.cleanAttributesToGet(attributesToGet, config.getCustomAttributesJSON()));
-        WebClient webClient = getWebclient("Users", params);
-        return doGetAllUsers(webClient);
+        return doGetAllUsers(buildParams(null, startIndex, count, attributesToGet));
     }
 
     /**
@@ -95,15 +155,138 @@ public class SCIMv11Client extends SCIMv11Service {
      */
     public PagedResults<User> getAllUsers(final String filterQuery, final Integer startIndex, final Integer count,
             final Set<String> attributesToGet) {
-        Map<String, String> params = new HashMap<>();
-        params.put("startIndex", String.valueOf(startIndex));
-        if (count != null) {
-            params.put("count", String.valueOf(count));
+        return doGetAllUsers(buildParams(filterQuery, startIndex, count, attributesToGet));
+    }
+
+    /**
+     * Reads all the (filtered) Users, one page after the other, until either no more are available or the handler
+     * asks to stop; page size is taken from configuration.
+     *
+     * @param filterQuery to filter results, or null
+     * @param attributesToGet
+     * @param handler receives each User as soon as it is read
+     */
+    public void getAllUsers(final String filterQuery, final Set<String> attributesToGet, final UserHandler handler) {
+        getAllUsers(filterQuery, null, attributesToGet, handler);
+    }
+
+    /**
+     * Same as {@link #getAllUsers(String, Set, UserHandler)}, with Users sorted by the service.
+     *
+     * @param filterQuery to filter results, or null
+     * @param sortKey SCIM attribute path to sort by, with order, or null
+     * @param attributesToGet
+     * @param handler receives each User as soon as it is read
+     */
+    public void getAllUsers(final String filterQuery, final SortKey sortKey, final Set<String> attributesToGet,
+            final UserHandler handler) {
+
+        if (config.isConsistentScan()) {
+            readAllUsers(filterQuery, sortKey == null ? getConsistentScanSortKey() : sortKey, attributesToGet,
+                    handler, 1);
+        } else if (config.getScanParallelism() > 1 && !config.isScanOrdered() && sortKey == null) {
+            scanAllUsers(filterQuery, attributesToGet, handler);
+        } else if (config.getScanParallelism() > 1 || config.getPrefetchPages() > 0) {
+            // to keep them in order, pages are requested concurrently but handed over one after the other
+            prefetchAllUsers(filterQuery, sortKey, attributesToGet, handler,
+                    Math.max(config.getPrefetchPages(), config.getScanParallelism() - 1));
+        } else {
+            readAllUsers(filterQuery, sortKey, attributesToGet, handler, 1);
+        }
+    }
+
+    /**
+     *
+     * @param filterQuery
+     * @param startIndex
+     * @param count
+     * @param attributesToGet
+     * @param handler receives each User as soon as it is read
+     * @return Paged list metadata, with no resources
+     */
+    public PagedResults<User> getAllUsers(final String filterQuery, final Integer startIndex, final Integer count,
+            final Set<String> attributesToGet, final UserHandler handler) {
+        return getAllUsers(filterQuery, null, startIndex, count, attributesToGet, handler);
+    }
+
+    /**
+     * Same as {@link #getAllUsers(String, Integer, Integer, Set, UserHandler)}, with Users sorted by the service.
+     *
+     * @param filterQuery
+     * @param sortKey SCIM attribute path to sort by, with order, or null
+     * @param startIndex
+     * @param count
+     * @param attributesToGet
+     * @param handler receives each User as soon as it is read
+     * @return Paged list metadata, with no resources
+     */
+    public PagedResults<User> getAllUsers(final String filterQuery, final SortKey sortKey, final Integer startIndex,
+            final Integer count, final Set<String> attributesToGet, final UserHandler handler) {
+
+        return queryUsers(buildParams(filterQuery, sortKey, startIndex, count, attributesToGet), handler, null);
+    }
+
+    /**
+     * Overlapping pages can only be matched if Users are returned in the same order by each request, which the
+     * default order of the service does not guarantee: unless sorted otherwise, they are sorted by id.
+     *
+     * @return sort key for consistent scans, or null if the service cannot sort
+     */
+    private SortKey getConsistentScanSortKey() {
+        if (isSortSupported()) {
+            return new SortKey(SCIMv11Attributes.USER_ATTRIBUTE_ID, true);
+        }
+        LOG.warn("Users cannot be sorted by the service, consistent scan relies on its default order being stable");
+        return null;
+    }
+
+    /**
+     * Tells whether the service can sort Users, as advertised by its {@code ServiceProviderConfigs}; this is read
+     * until the service answers, then remembered.
+     *
+     * @return whether {@code sortBy} is supported
+     */
+    public boolean isSortSupported() {
+        if (sortSupported == null) {
+            try {
+                JsonNode node = doGet(getWebclient("ServiceProviderConfigs", null));
+                if (node == null) {
+                    LOG.ok("Could not read service provider configuration, assuming sort is not supported for now");
+                    return false;
+                }
+                sortSupported = node.path("sort").path("supported").asBoolean(false);
+            } catch (NoSuchEntityException e) {
+                LOG.ok("No service provider configuration, sort is not supported");
+                sortSupported = false;
+            } catch (Exception e) {
+                // to be read again, as the service might be just temporarily unavailable
+                LOG.ok(e, "Could not read service provider configuration, assuming sort is not supported for now");
+                return false;
+            }
+        }
+        return sortSupported;
+    }
+
+    /**
+     * @return filter operators and attributes rejected so far by this service
+     */
+    public FilterCapabilities getFilterCapabilities() {
+        return filterCapabilities;
+    }
+
+    /**
+     * Checks whether the service accepts the given filter expression, by requesting a single User matching it.
+     *
+     * @param filterQuery filter expression
+     * @return false if the service rejects the given filter expression
+     */
+    public boolean isFilterSupported(final String filterQuery) {
+        try {
+            getAllUsers(filterQuery, 1, 1, Collections.singleton(SCIMv11Attributes.USER_ATTRIBUTE_ID), user -> false);
+            return true;
+        } catch (FilterRejectedException e) {
+            return false;
         }
-        params.put("filter", filterQuery);
-        params.put("attributes", SCIMv11Utils.cleanAttributesToGet(attributesToGet, config.getCustomAttributesJSON()));
-        WebClient webClient = getWebclient("Users", params);
-        return doGetAllUsers(webClient);
     }
 
     /**
@@ -112,9 +295,145 @@ public class SCIMv11Client extends SCIMv11Service {
      * @return User with userId id
      */
     public User getUser(final String userId) {
-        WebClient webClient = getWebclient("Users", null)
-                .path(userId);
-        return doGetUser(webClient);
+        User user = userCache == null ? null : userCache.get(userId);
+        if (user == null) {
+            checkNotFound(userId);
+            // a User cached but expired is read again only if changed meanwhile
+            User stale = userCache == null ? null : userCache.getStale(userId);
+            String version = stale == null || stale.getMeta() == null ? null : stale.getMeta().getVersion();
+
+            WebClient webClient = getWebclient("Users", null)
+                    .path(userId);
+            try {
+                if (userCache != null && stale != null && version != null) {
+                    Optional<JsonNode> node = doGet(webClient, version);
+                    if (!node.isPresent()) {
+                        userCache.revalidated(stale);
+                        return stale;
+                    }
+                    user = toUser(node.get());
+                } else {
+                    user = doGetUser(webClient);
+                }
+            } catch (NoSuchEntityException e) {
+                if (notFoundCache != null) {
+                    notFoundCache.idNotFound(userId);
+                }
+                throw e;
+            }
+            userNameIndex.put(user);
+            if (userCache != null) {
+                userCache.put(user);
+            }
+        }
+        return user;
+    }
+
+    /**
+     * Reads the User with the given id; when {@code lookupBatchWindow} is configured, concurrent reads are coalesced
+     * into batch requests.
+     *
+     * @param userId
+     * @param attributesToGet attributes to get, when reads are coalesced
+     * @return User with userId id
+     */
+    public User getUser(final String userId, final Set<String> attributesToGet) {
+        if (lookupCoalescer == null) {
+            return getUser(userId);
+        }
+
+        User cached = userCache == null ? null : userCache.get(userId);
+        if (cached != null) {
+            return cached;
+        }
+        checkNotFound(userId);
+        List<User> users = lookupCoalescer.lookup(SCIMv11Attributes.USER_ATTRIBUTE_ID, userId, attributesToGet);
+        if (users.isEmpty()) {
+            if (notFoundCache != null) {
+                notFoundCache.idNotFound(userId);
+            }
+            throw NoSuchEntityException.notFound("User " + userId + " not found");
+        }
+        return users.get(0);
+    }
+
+    /**
+     * Reads the Users with the given userName; when {@code lookupBatchWindow} is configured, concurrent reads are
+     * coalesced into batch requests.
+     *
+     * @param userName
+     * @param attributesToGet
+     * @param handler receives each User found
+     */
+    public void getUsersByUserName(final String userName, final Set<String> attributesToGet,
+            final UserHandler handler) {
+
+        if (notFoundCache != null && notFoundCache.isUserNameNotFound(userName)) {
+            LOG.ok("User {0} recently not found", userName);
+            return;
+        }
+
+        // the User last seen with the given userName is read by id, then checked not to have been renamed meanwhile
+        String userId = userNameIndex.get(userName);
+        if (userId != null) {
+            User user = null;
+            try {
+                user = getUser(userId, attributesToGet);
+            } catch (NoSuchEntityException e) {
+                LOG.ok("User {0} not found, was {1}", userId, userName);
+            }
+            if (user != null && userName.equalsIgnoreCase(user.getUserName())) {
+                handler.handle(user);
+                return;
+            }
+            userNameIndex.invalidate(userId);
+        }
+
+        AtomicBoolean found = new AtomicBoolean(false);
+        UserHandler checking = user -> {
+            found.set(true);
+            return handler.handle(user);
+        };
+        if (lookupCoalescer == null) {
+            getUsersByUserName(Collections.singletonList(userName), attributesToGet, checking);
+        } else {
+            for (User user : lookupCoalescer.lookup(
+                    SCIMv11Attributes.USER_ATTRIBUTE_USERNAME, userName, attributesToGet)) {
+
+                if (!checking.handle(user)) {
+                    return;
+                }
+            }
+        }
+        if (!found.get() && notFoundCache != null) {
+            notFoundCache.userNameNotFound(userName);
+        }
+    }
+
+    /**
+     * Reads the Users with the given ids, with as few requests as possible.
+     *
+     * @param userIds ids of the Users to read
+     * @param attributesToGet
+     * @param handler receives each User found, in no particular order
+     */
+    public void getUsersById(final Collection<String> userIds, final Set<String> attributesToGet,
+            final UserHandler handler) {
+
+        getUsersBy(SCIMv11Attributes.USER_ATTRIBUTE_ID, userIds, attributesToGet, handler);
+    }
+
+    /**
+     * Reads the Users with the given userNames, with as few requests as possible.
+     *
+     * @param userNames userNames of the Users to read
+     * @param attributesToGet
+     * @param handler receives each User found, in no particular order
+     */
+    public void getUsersByUserName(final Collection<String> userNames, final Set<String> attributesToGet,
+            final UserHandler handler) {
+
+        getUsersBy(SCIMv11Attributes.USER_ATTRIBUTE_USERNAME, userNames, attributesToGet, handler);
     }
 
     /**
@@ -123,7 +442,16 @@ public class SCIMv11Client extends SCIMv11Service {
      * @return Created User
      */
     public User createUser(final User user) {
-        return User.class.cast(doCreateUser(user));
+        try {
+            return User.class.cast(doCreateUser(user));
+        } finally {
+            if (queryCache != null) {
+                queryCache.invalidate();
+            }
+            if (notFoundCache != null) {
+                notFoundCache.found(user.getId(), user.getUserName());
+            }
+        }
     }
 
     /**
@@ -132,7 +460,23 @@ public class SCIMv11Client extends SCIMv11Service {
      * @return Update User
      */
     public User updateUser(final User user) {
-        return User.class.cast(doUpdateUser(user));
+        if (user.getId() != null) {
+            userNameIndex.invalidate(user.getId());
+            if (userCache != null) {
+                userCache.invalidate(user.getId());
+            }
+        }
+        if (notFoundCache != null) {
+            // the User might have been renamed to a userName not found before
+            notFoundCache.found(null, user.getUserName());
+        }
+        try {
+            return User.class.cast(doUpdateUser(user));
+        } finally {
+            if (queryCache != null) {
+                queryCache.invalidate();
+            }
+        }
     }
 
     /**
@@ -142,7 +486,17 @@ public class SCIMv11Client extends SCIMv11Service {
     public void deleteUser(final String userId) {
         WebClient webClient = getWebclient("Users", null)
                 .path(userId);
-        doDeleteUser(userId, webClient);
+        try {
+            doDeleteUser(userId, webClient);
+        } finally {
+            if (queryCache != null) {
+                queryCache.invalidate();
+            }
+            userNameIndex.invalidate(userId);
+            if (userCache != null) {
+                userCache.invalidate(userId);
+            }
+        }
     }
 
     /**
@@ -150,7 +504,34 @@ public class SCIMv11Client extends SCIMv11Service {
      * @param userId
      */
     public void activateUser(final String userId) {
-        doActivateUser(userId);
+        try {
+            doActivateUser(userId);
+        } finally {
+            if (queryCache != null) {
+                queryCache.invalidate();
+            }
+            if (userCache != null) {
+                userCache.invalidate(userId);
+            }
+        }
+    }
+
+    /**
+     * Fails with no request to the service if the given id was recently not found.
+     *
+     * @param userId User id
+     */
+    private void checkNotFound(final String userId) {
+        if (notFoundCache != null && notFoundCache.isIdNotFound(userId)) {
+            throw NoSuchEntityException.notFound("User " + userId + " not found");
+        }
+    }
+
+    /**
+     * @return cache of Users read by id, or null if not configured
+     */
+    public UserCache getUserCache() {
+        return userCache;
     }
 
     public boolean testService() {
@@ -159,45 +540,432 @@ public class SCIMv11Client extends SCIMv11Service {
         return getAllUsers(1, 1, attributesToGet) != null;
     }
 
-    private PagedResults<User> doGetAllUsers(final WebClient webClient) {
-        PagedResults<User> resources = null;
-        JsonNode node = doGet(webClient);
-        if (node == null) {
-            SCIMv11Utils.handleGeneralError("While retrieving Users from service");
+    private void readAllUsers(final String filterQuery, final SortKey sortKey, final Set<String> attributesToGet,
+            final UserHandler handler, final int from) {
+
+        AdaptivePageSize adaptivePageSize = config.isAdaptivePageSize() ? new AdaptivePageSize(config) : null;
+        // with consistent scan, each page also re-reads the last Users of the previous one: if none of them is found,
+        // Users were removed meanwhile and some others shifted back, unseen, so reading is resumed further back
+        UniqueUserHandler uniqueHandler = config.isConsistentScan() ? new UniqueUserHandler(handler) : null;
+        int startIndex = from;
+        int rewind = 0;
+        int totalResults = 0;
+        boolean more = true;
+        while (more) {
+            int count = adaptivePageSize == null ? config.getPageSize() : adaptivePageSize.get();
+            int overlap = uniqueHandler == null || startIndex == from ? 0 : Math.min(startIndex - 1, 1 + count / 10);
+            int requestIndex = startIndex - overlap;
+
+            PageHandler pageHandler = new PageHandler(uniqueHandler == null ? handler : uniqueHandler.page());
+            long start = System.nanoTime();
+            PagedResults<User> page;
+            try {
+                page = queryUsers(
+                        buildParams(filterQuery, sortKey, requestIndex, count + overlap, attributesToGet),
+                        pageHandler,
+                        pageHandler::setBodySize);
+            } catch (RuntimeException e) {
+                if (adaptivePageSize == null || !isTimeout(e) || pageHandler.isStopped()
+                        || !adaptivePageSize.shrink()) {
+
+                    throw e;
+                }
+                LOG.ok("Page of {0} Users timed out, retrying with {1}", count, adaptivePageSize.get());
+
+                // Users already handed over are not read again
+                startIndex = Math.max(startIndex, requestIndex + pageHandler.getRead());
+                continue;
+            }
+
+            if (adaptivePageSize != null) {
+                adaptivePageSize.update(
+                        pageHandler.getRead(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start - pageHandler.getHandlingTime()),
+                        pageHandler.getBodySize());
+            }
+
+            totalResults = page.getTotalResults();
+            if (overlap > 0 && pageHandler.getRead() > 0 && !pageHandler.isStopped()
+                    && !uniqueHandler.isPageOverlapping()) {
+
+                rewind = rewind == 0 ? 2 * overlap : 2 * rewind;
+                startIndex = Math.max(from, requestIndex - rewind);
+                LOG.warn("Users were removed while reading, reading again from {0}", startIndex);
+                continue;
+            }
+            rewind = 0;
+
+            startIndex = (page.getStartIndex() > 0 ? page.getStartIndex() : requestIndex) + pageHandler.getRead();
+            more = !pageHandler.isStopped()
+                    && pageHandler.getRead() > 0
+                    && (totalResults > 0
+                    ? startIndex <= totalResults
+                    : pageHandler.getRead() >= count + overlap);
+        }
+
+        if (uniqueHandler != null && !uniqueHandler.isStopped() && totalResults > uniqueHandler.getHandled()) {
+            LOG.warn("{0} Users were reported but {1} were read", totalResults, uniqueHandler.getHandled());
         }
+    }
 
+    /**
+     * Same as {@link #readAllUsers(String, SortKey, Set, UserHandler, int)} but, while a page is handed over, up to
+     * {@code depth} following pages are requested in background.
+     */
+    private void prefetchAllUsers(final String filterQuery, final SortKey sortKey, final Set<String> attributesToGet,
+            final UserHandler handler, final int depth) {
+
+        int pageSize = config.getPageSize();
+        Deque<Future<PagedResults<User>>> pending = new ArrayDeque<>();
+        Deque<Integer> pendingIndexes = new ArrayDeque<>();
+        int startIndex = 1;
+        int requested = 1;
+        // distance between the pages requested: less than page size if the service returns less Users per page
+        int step = pageSize;
+        // -1 until the first page is read, 0 if not provided by the service
+        int totalResults = -1;
         try {
-            resources = SCIMv11Utils.MAPPER.readValue(
-                    node.toString(),
-                    new TypeReference<PagedResults<User>>() {
-            });
-        } catch (IOException ex) {
-            LOG.error(ex, "While converting from JSON to Users");
+            boolean more = true;
+            while (more) {
+                while (pending.isEmpty()
+                        || (totalResults >= 0 && pending.size() <= depth
+                        && (totalResults == 0 || requested <= totalResults))) {
+
+                    int index = requested;
+                    pending.add(fetchPage(() -> doGetAllUsers(
+                            buildParams(filterQuery, sortKey, index, pageSize, attributesToGet))));
+                    pendingIndexes.add(index);
+                    requested += step;
+                }
+
+                PagedResults<User> page = await(pending.poll());
+                pendingIndexes.poll();
+                totalResults = page.getTotalResults();
+
+                int read = 0;
+                for (User user : page.getResources()) {
+                    read++;
+                    if (!handler.handle(user)) {
+                        return;
+                    }
+                }
+
+                startIndex += read;
+                more = read > 0 && (totalResults > 0 ? startIndex <= totalResults : read >= pageSize);
+                if (more && read != step) {
+                    // the service returned less than requested, as it caps page size: next pages follow its length
+                    step = read;
+                }
+                int expected = pendingIndexes.isEmpty() ? requested : pendingIndexes.peek();
+                if (more && expected != startIndex) {
+                    // pages requested so far do not start where expected, as page length changed meanwhile
+                    cancelPages(pending);
+                    pendingIndexes.clear();
+                    requested = startIndex;
+                }
+            }
+        } finally {
+            cancelPages(pending);
         }
+    }
 
-        if (resources == null) {
-            SCIMv11Utils.handleGeneralError("While retrieving Users from service");
-        } else {
-            // check custom attributes
-            if (!resources.getResources().isEmpty()) {
-                readCustomAttributes(resources, node.get(RESPONSE_RESOURCES));
+    /**
+     * Reads the first page then splits the rest of the index range, as reported by {@code totalResults}, in
+     * {@code scanParallelism} partitions read concurrently; Users are handed over as soon as each page arrives, thus
+     * in no particular order.
+     */
+    private void scanAllUsers(final String filterQuery, final Set<String> attributesToGet, final UserHandler handler) {
+        PageHandler firstPageHandler = new PageHandler(handler);
+        PagedResults<User> firstPage = getAllUsers(
+                filterQuery, 1, config.getPageSize(), attributesToGet, firstPageHandler);
+        if (firstPageHandler.isStopped() || firstPageHandler.getRead() == 0) {
+            return;
+        }
+
+        int from = 1 + firstPageHandler.getRead();
+        int totalResults = firstPage.getTotalResults();
+        if (totalResults <= 0) {
+            // cannot partition without knowing how many Users are there
+            readAllUsers(filterQuery, null, attributesToGet, handler, from);
+            return;
+        }
+
+        int parallelism = config.getScanParallelism();
+        int partitionSize = (totalResults - from + parallelism) / parallelism;
+        BlockingQueue<List<User>> pages = new ArrayBlockingQueue<>(parallelism * 2);
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        List<Future<Void>> partitions = new ArrayList<>();
+        try {
+            for (int start = from; start <= totalResults; start += partitionSize) {
+                int first = start;
+                int last = Math.min(totalResults, start + partitionSize - 1);
+                partitions.add(fetchPage(
+                        () -> readPartition(filterQuery, attributesToGet, first, last, pages, stopped)));
+            }
+
+            boolean more = true;
+            while (more) {
+                List<User> users = poll(pages);
+                if (users == null) {
+                    boolean done = true;
+                    for (Future<Void> partition : partitions) {
+                        if (partition.isDone()) {
+                            // propagates failures, if any
+                            await(partition);
+                        } else {
+                            done = false;
+                        }
+                    }
+                    more = !done || !pages.isEmpty();
+                } else {
+                    for (User user : users) {
+                        if (!handler.handle(user)) {
+                            return;
+                        }
+                    }
+                }
             }
+        } finally {
+            stopped.set(true);
+            partitions.forEach(partition -> partition.cancel(false));
+            pages.clear();
         }
+    }
+
+    private Void readPartition(final String filterQuery, final Set<String> attributesToGet, final int first,
+            final int last, final BlockingQueue<List<User>> pages, final AtomicBoolean stopped)
+            throws InterruptedException {
+
+        int startIndex = first;
+        while (startIndex <= last && !stopped.get()) {
+            List<User> users = getAllUsers(filterQuery, startIndex,
+                    Math.min(config.getPageSize(), last - startIndex + 1), attributesToGet).getResources();
+            if (users.isEmpty()) {
+                // less Users than reported by totalResults
+                break;
+            }
+
+            while (!pages.offer(users, POLL_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                if (stopped.get()) {
+                    return null;
+                }
+            }
+            startIndex += users.size();
+        }
+        return null;
+    }
+
+    /**
+     * Values are looked up in chunks, each with a filter expression as {@code path eq "a" or path eq "b" ...}, kept
+     * within {@link #MAX_BATCH_SIZE} values and {@link #MAX_BATCH_FILTER_LENGTH} URL-encoded characters.
+     */
+    private void getUsersBy(final String path, final Collection<String> values, final Set<String> attributesToGet,
+            final UserHandler handler) {
+
+        PageHandler batchHandler = new PageHandler(handler);
+        FilterCapabilities capabilities = getFilterCapabilities();
+        List<String> chunk = new ArrayList<>();
+        int chunkLength = 0;
+        for (String value : new LinkedHashSet<>(values)) {
+            String expression = path + " eq " + SCIMv11Utils.toFilterValue(value);
+            int length = encodedLength(expression) + (chunk.isEmpty() ? 0 : OR_LENGTH);
+            if (!chunk.isEmpty() && (chunk.size() >= MAX_BATCH_SIZE || chunkLength + length > MAX_BATCH_FILTER_LENGTH
+                    || !capabilities.isSupported("or"))) {
+
+                getUsersBy(path, chunk, attributesToGet, batchHandler, capabilities);
+                if (batchHandler.isStopped()) {
+                    return;
+                }
+                chunk.clear();
+                chunkLength = 0;
+                length = encodedLength(expression);
+            }
+            chunk.add(value);
+            chunkLength += length;
+        }
+        if (!chunk.isEmpty()) {
+            getUsersBy(path, chunk, attributesToGet, batchHandler, capabilities);
+        }
+    }
+
+    private void getUsersBy(final String path, final List<String> values, final Set<String> attributesToGet,
+            final PageHandler handler, final FilterCapabilities capabilities) {
+
+        if (SCIMv11Attributes.USER_ATTRIBUTE_ID.equals(path) && !capabilities.isSupported(path, "eq")) {
+            // ids can still be read one by one
+            for (String value : values) {
+                try {
+                    if (!handler.handle(getUser(value))) {
+                        return;
+                    }
+                } catch (NoSuchEntityException e) {
+                    LOG.ok("User {0} not found", value);
+                }
+            }
+            return;
+        }
+
+        String filterQuery = values.stream()
+                .map(value -> path + " eq " + SCIMv11Utils.toFilterValue(value))
+                .collect(Collectors.joining(" or "));
+        int read = handler.getRead();
+        try {
+            readAllUsers(filterQuery, null, attributesToGet, handler, 1);
+        } catch (FilterRejectedException e) {
+            String expression = path + " eq " + SCIMv11Utils.toFilterValue(values.get(0));
+            if (values.size() == 1 || handler.getRead() > read || !isFilterSupported(expression)) {
+                throw e;
+            }
+
+            // the service accepts single values, so this chunk is sent one value at a time; so are the remaining
+            // chunks, if OR is found to be rejected
+            if (!isFilterSupported("(" + expression + " or " + expression + ")")) {
+                capabilities.reject("or");
+            }
+            for (String value : values) {
+                getUsersBy(path, Collections.singletonList(value), attributesToGet, handler, capabilities);
+                if (handler.isStopped()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Measured as encoded by the web client, which differs from {@link java.net.URLEncoder}: for example, characters
+     * as {@code /} and {@code ?} are left as they are.
+     */
+    static int encodedLength(final String expression) {
+        return UriBuilder.fromPath("").queryParam("filter", expression).build().getRawQuery().length()
+                - "filter=".length();
+    }
+
+    private static List<User> poll(final BlockingQueue<List<User>> pages) {
+        try {
+            return pages.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while reading Users", e);
+        }
+    }
+
+    private static boolean isTimeout(final Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException || cause instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <T> T await(final Future<T> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while reading Users", e);
+        } catch (ExecutionException e) {
+            throw ConnectorException.wrap(e.getCause());
+        }
+    }
+
+    private static void cancelPages(final Deque<Future<PagedResults<User>>> pending) {
+        // requests already sent are let complete, their results are just ignored
+        pending.forEach(page -> page.cancel(false));
+        pending.clear();
+    }
 
+    private Map<String, String> buildParams(final String filterQuery, final Integer startIndex, final Integer count,
+            final Set<String> attributesToGet) {
+
+        return buildParams(filterQuery, null, startIndex, count, attributesToGet);
+    }
+
+    private Map<String, String> buildParams(final String filterQuery, final SortKey sortKey,
+            final Integer startIndex, final Integer count, final Set<String> attributesToGet) {
+
+        Map<String, String> params = new HashMap<>();
+        if (sortKey != null) {
+            params.put("sortBy", sortKey.getField());
+            params.put("sortOrder", sortKey.isAscendingOrder() ? "ascending" : "descending");
+        }
+        if (startIndex != null) {
+            params.put("startIndex", String.valueOf(startIndex));
+        }
+        if (count != null) {
+            params.put("count", String.valueOf(count));
+        }
+        if (filterQuery != null) {
+            params.put("filter", filterQuery);
+        }
+        params.put("attributes", SCIMv11Utils.cleanAttributesToGet(attributesToGet, config.getCustomAttributesJSON()));
+        return params;
+    }
+
+    private PagedResults<User> doGetAllUsers(final Map<String, String> params) {
+        List<User> users = new ArrayList<>();
+        PagedResults<User> resources = queryUsers(params, users::add, null);
+        resources.getResources().addAll(users);
         return resources;
     }
 
+    /**
+     * Runs a list request with the given parameters, unless a page for the same parameters is found in the query
+     * cache: its Users are then handed over instead. Only first pages of filtered requests are looked up and kept,
+     * so that reading all Users, page after page, is never cached.
+     *
+     * @return list response metadata, with no resources
+     */
+    private PagedResults<User> queryUsers(final Map<String, String> params, final UserHandler handler,
+            final LongConsumer bodySize) {
+
+        if (queryCache == null || !QueryCache.isCacheable(params)) {
+            return doGetUsers(getWebclient("Users", params), handler, bodySize);
+        }
+
+        PagedResults<User> cached = queryCache.get(params);
+        if (cached != null) {
+            LOG.ok("Page of {0} Users found in query cache", cached.getResources().size());
+            for (User user : cached.getResources()) {
+                if (!handler.handle(user)) {
+                    break;
+                }
+            }
+
+            PagedResults<User> metadata = new PagedResults<>();
+            metadata.setTotalResults(cached.getTotalResults());
+            metadata.setItemsPerPage(cached.getItemsPerPage());
+            metadata.setStartIndex(cached.getStartIndex());
+            return metadata;
+        }
+
+        long generation = queryCache.getGeneration();
+        List<User> users = new ArrayList<>();
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        PagedResults<User> page = doGetUsers(getWebclient("Users", params), user -> {
+            users.add(user);
+            stopped.set(!handler.handle(user));
+            return !stopped.get();
+        }, bodySize);
+        // pages not read in full, as the handler asked to stop, are not cached; nor are those not holding all results
+        if (!stopped.get()) {
+            queryCache.put(params, page, users, generation);
+        }
+        return page;
+    }
+
     private User doGetUser(final WebClient webClient) {
+        return toUser(doGet(webClient));
+    }
+
+    private User toUser(final JsonNode node) {
         User user = null;
-        JsonNode node = doGet(webClient);
         if (node == null) {
             SCIMv11Utils.handleGeneralError("While retrieving User from service");
         }
 
         try {
-            user = SCIMv11Utils.MAPPER.readValue(
-                    node.toString(),
-                    User.class);
+            user = SCIMv11Utils.MAPPER.treeToValue(node, User.class);
         } catch (IOException ex) {
             LOG.error(ex, "While converting from JSON to User");
         }
@@ -213,10 +981,25 @@ public class SCIMv11Client extends SCIMv11Service {
     }
 
     private User doCreateUser(final User user) {
-        doCreate(user, getWebclient("Users", null));
+        JsonNode node = doCreate(user, getWebclient("Users", null));
+        // the User as created, with values assigned by the service
+        cache(node);
         return user;
     }
 
+    private void cache(final JsonNode node) {
+        try {
+            User user = SCIMv11Utils.MAPPER.treeToValue(node, User.class);
+            readCustomAttributes(user, node);
+            userNameIndex.put(user);
+            if (userCache != null) {
+                userCache.put(user);
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOG.ok(ex, "While caching User");
+        }
+    }
+
     private User doUpdateUser(final User user) {
         if (StringUtil.isBlank(user.getId())) {
             SCIMv11Utils.handleGeneralError("Missing required user id attribute for update");
@@ -241,6 +1024,8 @@ public class SCIMv11Client extends SCIMv11Service {
         if (updated == null) {
             SCIMv11Utils.handleGeneralError("While retrieving user from service after update");
         }
+        // the User as updated, with values assigned by the service
+        cache(node);
 
         return updated;
     }
@@ -254,4 +1039,119 @@ public class SCIMv11Client extends SCIMv11Service {
                 .path("tokens"));
     }
 
+    /**
+     * Passes each User to the given handler only once, by id, across all pages of a scan.
+     */
+    static class UniqueUserHandler implements UserHandler {
+
+        private final UserHandler handler;
+
+        private final IdSet seen = new IdSet();
+
+        private boolean pageStart;
+
+        private boolean pageOverlapping;
+
+        private int handled = 0;
+
+        private boolean stopped = false;
+
+        UniqueUserHandler(final UserHandler handler) {
+            this.handler = handler;
+        }
+
+        /**
+         * Starts a new page.
+         *
+         * @return this handler
+         */
+        public UniqueUserHandler page() {
+            pageStart = true;
+            pageOverlapping = false;
+            return this;
+        }
+
+        @Override
+        public boolean handle(final User user) {
+            boolean unseen = user.getId() == null || seen.add(user.getId());
+            if (pageStart) {
+                pageOverlapping = !unseen;
+                pageStart = false;
+            }
+            if (!unseen) {
+                return true;
+            }
+
+            handled++;
+            stopped = !handler.handle(user);
+            return !stopped;
+        }
+
+        /**
+         * @return whether the current page started with a User already seen
+         */
+        public boolean isPageOverlapping() {
+            return pageOverlapping;
+        }
+
+        public int getHandled() {
+            return handled;
+        }
+
+        public boolean isStopped() {
+            return stopped;
+        }
+    }
+
+    /**
+     * Counts the Users read from a single page, before passing them to the given handler.
+     */
+    private static class PageHandler implements UserHandler {
+
+        private final UserHandler handler;
+
+        private int read = 0;
+
+        private boolean stopped = false;
+
+        private long handlingTime = 0L;
+
+        private long bodySize = -1L;
+
+        PageHandler(final UserHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public boolean handle(final User user) {
+            read++;
+            long start = System.nanoTime();
+            stopped = !handler.handle(user);
+            handlingTime += System.nanoTime() - start;
+            return !stopped;
+        }
+
+        /**
+         * @return nanoseconds spent by the given handler, rather than waiting for the service
+         */
+        public long getHandlingTime() {
+            return handlingTime;
+        }
+
+        public long getBodySize() {
+            return bodySize;
+        }
+
+        public void setBodySize(final long bodySize) {
+            this.bodySize = bodySize;
+        }
+
+        public int getRead() {
+            return read;
+        }
+
+        public boolean isStopped() {
+            return stopped;
+        }
+    }
 }
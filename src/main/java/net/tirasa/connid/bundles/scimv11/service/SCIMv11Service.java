@@ -15,16 +15,31 @@
  */
 package net.tirasa.connid.bundles.scimv11.service;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import javax.ws.rs.HttpMethod;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
@@ -35,9 +50,15 @@ import net.tirasa.connid.bundles.scimv11.dto.SCIMSchema;
 import net.tirasa.connid.bundles.scimv11.dto.User;
 import net.tirasa.connid.bundles.scimv11.utils.SCIMv11Attributes;
 import net.tirasa.connid.bundles.scimv11.utils.SCIMv11Utils;
+import org.apache.cxf.Bus;
+import org.apache.cxf.bus.CXFBusFactory;
+import org.apache.cxf.jaxrs.client.JAXRSClientFactoryBean;
 import org.apache.cxf.jaxrs.client.WebClient;
+import org.apache.cxf.transport.http.asyncclient.AsyncHTTPConduitFactory;
+import org.apache.cxf.transport.http.auth.DefaultBasicAuthSupplier;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.common.security.SecurityUtil;
 
 public class SCIMv11Service {
@@ -50,29 +71,180 @@ public class SCIMv11Service {
 
     public final static String RESPONSE_RESOURCES = "Resources";
 
+    private static final long TOKEN_EXPIRATION_SKEW = 30000L;
+
+    private final SCIMSchema customSchema;
+
+    private final Bus bus;
+
+    private final WebClient baseWebClient;
+
+    private final WebClient tokenWebClient;
+
+    private final GuardedString tokenRequestBody;
+
+    /**
+     * Basic Authorization header value, kept guarded and only revealed while building each request.
+     */
+    private final GuardedString basicAuthorization;
+
+    private final Object tokenLock = new Object();
+
+    private volatile String token;
+
+    private volatile long tokenExpiration;
+
+    private final ScheduledExecutorService tokenRefresher;
+
+    private ScheduledFuture<?> tokenRefresh;
+
+    private final ExecutorService pageFetcher;
+
+    /**
+     * Ids of the Users decoded so far, by userName.
+     */
+    protected final UserNameIndex userNameIndex = new UserNameIndex();
+
     public SCIMv11Service(final SCIMv11ConnectorConfiguration config) {
         this.config = config;
+        this.customSchema = buildCustomSchema(config.getCustomAttributesJSON());
+        this.bus = buildBus(config);
+        this.pageFetcher = config.getPrefetchPages() > 0 || config.getScanParallelism() > 1
+                ? Executors.newFixedThreadPool(Math.max(config.getPrefetchPages(), config.getScanParallelism()),
+                        runnable -> {
+                            Thread thread = new Thread(runnable, "SCIMv11 page fetcher");
+                            thread.setDaemon(true);
+                            return thread;
+                        })
+                : null;
+
+        // headers shared by all requests are computed once, then inherited by each web client
+        this.baseWebClient = buildWebClient(config.getBaseAddress())
+                .type(config.getAccept())
+                .accept(config.getContentType());
+
+        if (isTokenAuthentication()) {
+            this.tokenWebClient = buildWebClient(config.getAccessTokenBaseAddress())
+                    .type(config.getAccessTokenContentType())
+                    .accept(config.getAccept());
+            this.tokenRequestBody = buildTokenRequestBody(config);
+            this.basicAuthorization = null;
+            this.tokenRefresher = config.getAccessTokenRefreshPercentage() > 0
+                    ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "SCIMv11 access token refresher");
+                        thread.setDaemon(true);
+                        return thread;
+                    })
+                    : null;
+        } else {
+            this.basicAuthorization = new GuardedString(DefaultBasicAuthSupplier.getBasicAuthHeader(
+                    config.getUsername(),
+                    config.getPassword() == null ? null : SecurityUtil.decrypt(config.getPassword()))
+                    .toCharArray());
+            this.tokenWebClient = null;
+            this.tokenRequestBody = null;
+            this.tokenRefresher = null;
+        }
     }
 
-    protected WebClient getWebclient(final String path, final Map<String, String> params) {
-        WebClient webClient;
-        if (StringUtil.isNotBlank(config.getCliendId())
+    private static SCIMSchema buildCustomSchema(final String customAttributesJSON) {
+        SCIMSchema scimSchema = StringUtil.isBlank(customAttributesJSON)
+                ? null
+                : extractSCIMSchemas(customAttributesJSON);
+        return scimSchema == null || scimSchema.getAttributes().isEmpty() ? null : scimSchema;
+    }
+
+    private static Bus buildBus(final SCIMv11ConnectorConfiguration config) {
+        // all requests (PATCH included) go through the pooling, keep-alive capable HttpAsyncClient conduit
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(AsyncHTTPConduitFactory.USE_POLICY, "ALWAYS");
+        properties.put(AsyncHTTPConduitFactory.MAX_CONNECTIONS, config.getMaxConnections());
+        properties.put(AsyncHTTPConduitFactory.MAX_PER_HOST_CONNECTIONS, config.getMaxConnectionsPerRoute());
+        properties.put(AsyncHTTPConduitFactory.CONNECTION_MAX_IDLE, config.getConnectionMaxIdle() * 1000);
+        return new CXFBusFactory().createBus(new HashMap<>(), properties);
+    }
+
+    private WebClient buildWebClient(final String address) {
+        JAXRSClientFactoryBean bean = new JAXRSClientFactoryBean();
+        bean.setBus(bus);
+        bean.setAddress(address);
+        return bean.createWebClient();
+    }
+
+    private static GuardedString buildTokenRequestBody(final SCIMv11ConnectorConfiguration config) {
+        String password = SecurityUtil.decrypt(config.getPassword());
+        return new GuardedString(new StringBuilder("&client_id=")
+                .append(config.getCliendId())
+                .append("&client_secret=")
+                .append(config.getClientSecret())
+                .append("&username=")
+                .append(config.getUsername())
+                .append("&password=")
+                .append(password == null ? "" : password)
+                .toString()
+                .toCharArray());
+    }
+
+    private boolean isTokenAuthentication() {
+        return StringUtil.isNotBlank(config.getCliendId())
                 && StringUtil.isNotBlank(config.getClientSecret())
                 && StringUtil.isNotBlank(config.getAccessTokenBaseAddress())
-                && StringUtil.isNotBlank(config.getAccessTokenNodeId())) {
-            webClient = WebClient.create(config.getBaseAddress())
-                    .type(config.getAccept())
-                    .accept(config.getContentType())
-                    .path(path);
-            webClient.header(HttpHeaders.AUTHORIZATION, "Bearer " + generateToken());
+                && StringUtil.isNotBlank(config.getAccessTokenNodeId());
+    }
+
+    /**
+     * Releases the HTTP connection pool shared by all the web clients created by this service.
+     */
+    public void close() {
+        if (tokenRefresher != null) {
+            tokenRefresher.shutdownNow();
+        }
+        if (pageFetcher != null) {
+            // pages still in progress belong to searches already given up, no need to interrupt them
+            pageFetcher.shutdown();
+        }
+        baseWebClient.removeAllHeaders();
+        baseWebClient.close();
+        if (tokenWebClient != null) {
+            tokenWebClient.close();
+        }
+        if (tokenRequestBody != null) {
+            tokenRequestBody.dispose();
+        }
+        if (basicAuthorization != null) {
+            basicAuthorization.dispose();
+        }
+        token = null;
+        bus.shutdown(true);
+    }
+
+    /**
+     * @return custom attributes, as parsed from configuration, or null if none
+     */
+    public SCIMSchema getCustomSchema() {
+        return customSchema;
+    }
+
+    /**
+     * Runs the given page request in background, as configured by {@code prefetchPages} and
+     * {@code scanParallelism}.
+     *
+     * @param <T> page type
+     * @param request page request
+     * @return pending page
+     */
+    protected <T> Future<T> fetchPage(final Callable<T> request) {
+        return pageFetcher.submit(request);
+    }
+
+    protected WebClient getWebclient(final String path, final Map<String, String> params) {
+        // new request state on top of the shared client configuration (and then HTTP conduit)
+        WebClient webClient = WebClient.fromClient(baseWebClient, true)
+                .path(path);
+        if (tokenWebClient != null) {
+            webClient.header(HttpHeaders.AUTHORIZATION, "Bearer " + getToken());
         } else {
-            webClient = WebClient.create(config.getBaseAddress(),
-                    config.getUsername(),
-                    config.getPassword() == null ? null : SecurityUtil.decrypt(config.getPassword()),
-                    null)
-                    .type(config.getAccept())
-                    .accept(config.getContentType())
-                    .path(path);
+            basicAuthorization.access(chars -> webClient.header(HttpHeaders.AUTHORIZATION, new String(chars)));
         }
 
         if (params != null) {
@@ -84,43 +256,149 @@ public class SCIMv11Service {
         return webClient;
     }
 
-    private String generateToken() {
-        WebClient webClient = WebClient
-                .create(config.getAccessTokenBaseAddress())
-                .type(config.getAccessTokenContentType())
-                .accept(config.getAccept());
+    /**
+     * Returns the cached access token, obtaining a new one only when missing or close to expiration; concurrent
+     * callers finding no valid token wait for a single refresh instead of each requesting a new token.
+     *
+     * @return access token
+     */
+    protected String getToken() {
+        String current = token;
+        if (current != null && System.currentTimeMillis() < tokenExpiration) {
+            return current;
+        }
+
+        synchronized (tokenLock) {
+            if (token == null || System.currentTimeMillis() >= tokenExpiration) {
+                generateToken();
+            }
+            return token;
+        }
+    }
+
+    /**
+     * Discards the given access token, if still cached, so that next {@link #getToken()} will obtain a new one.
+     *
+     * @param rejected access token rejected by the service
+     */
+    protected void invalidateToken(final String rejected) {
+        synchronized (tokenLock) {
+            if (rejected != null && rejected.equals(token)) {
+                token = null;
+            }
+        }
+    }
+
+    private void generateToken() {
+        WebClient webClient = WebClient.fromClient(tokenWebClient, true);
 
-        String contentUri = new StringBuilder("&client_id=")
-                .append(config.getCliendId())
-                .append("&client_secret=")
-                .append(config.getClientSecret())
-                .append("&username=")
-                .append(config.getUsername())
-                .append("&password=")
-                .append(SecurityUtil.decrypt(config.getPassword()))
-                .toString();
-        String token = null;
+        String contentUri = SecurityUtil.decrypt(tokenRequestBody);
         try {
+            long requested = System.currentTimeMillis();
             Response response = webClient.post(contentUri);
             String responseAsString = response.readEntity(String.class);
             JsonNode result = SCIMv11Utils.MAPPER.readTree(responseAsString);
             if (result == null || !result.hasNonNull(config.getAccessTokenNodeId())) {
                 SCIMv11Utils.handleGeneralError("No access token found - " + responseAsString);
             }
+
+            long expiration = Long.MAX_VALUE;
+            long lifetime = -1;
+            if (StringUtil.isNotBlank(config.getAccessTokenExpiresInNodeId())
+                    && result.hasNonNull(config.getAccessTokenExpiresInNodeId())) {
+                // renew a little before actual expiration, to avoid sending tokens expiring while in flight
+                lifetime = result.get(config.getAccessTokenExpiresInNodeId()).asLong() * 1000;
+                expiration = requested + lifetime - Math.min(TOKEN_EXPIRATION_SKEW, lifetime / 10);
+            }
+
+            tokenExpiration = expiration;
             token = result.get(config.getAccessTokenNodeId()).textValue();
+
+            if (tokenRefresher != null && lifetime > 0) {
+                scheduleTokenRefresh(lifetime * config.getAccessTokenRefreshPercentage() / 100);
+            }
         } catch (Exception ex) {
             SCIMv11Utils.handleGeneralError("While obtaining authentication token", ex);
         }
+    }
+
+    private void scheduleTokenRefresh(final long delay) {
+        if (tokenRefresh != null) {
+            tokenRefresh.cancel(false);
+        }
+        try {
+            tokenRefresh = tokenRefresher.schedule(() -> {
+                // the current token is still valid while renewing, so callers are not blocked meanwhile
+                synchronized (tokenLock) {
+                    try {
+                        generateToken();
+                    } catch (Exception e) {
+                        LOG.error(e, "While renewing access token in background");
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.ok("Access token refresher already stopped");
+        }
+    }
 
-        return token;
+    /**
+     * Invokes the given method; if bearer token authentication is in place and the service replies 401, the token
+     * is renewed and the request is sent once more.
+     *
+     * @param webClient web client
+     * @param method HTTP method
+     * @param body request payload, if any
+     * @return service response
+     */
+    protected Response invoke(final WebClient webClient, final String method, final Object body) {
+        Response response = webClient.invoke(method, body);
+        if (tokenWebClient != null && response.getStatus() == Status.UNAUTHORIZED.getStatusCode()) {
+            String authorization = webClient.getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
+            LOG.ok("Access token rejected, renewing");
+            response.close();
+
+            invalidateToken(authorization == null ? null : authorization.substring("Bearer ".length()));
+            webClient.replaceHeader(HttpHeaders.AUTHORIZATION, "Bearer " + getToken());
+            response = webClient.invoke(method, body);
+        }
+        return response;
     }
 
     protected JsonNode doGet(final WebClient webClient) {
         LOG.ok("GET: {0}", webClient.getCurrentURI());
-        JsonNode result = null;
+        return readResult(invoke(webClient, HttpMethod.GET, null));
+    }
+
+    /**
+     * Same as {@link #doGet(WebClient)}, but conditional: the service is asked to reply with no body if the resource
+     * was not modified since the given version.
+     *
+     * @param webClient web client
+     * @param version resource version as last read, i.e. {@code meta.version}
+     * @return resource read, or empty if not modified since the given version
+     */
+    protected Optional<JsonNode> doGet(final WebClient webClient, final String version) {
+        LOG.ok("GET: {0}, if modified since version {1}", webClient.getCurrentURI(), version);
+
+        webClient.header(HttpHeaders.IF_NONE_MATCH, version);
+        Response response = invoke(webClient, HttpMethod.GET, null);
+        if (response.getStatus() == Status.NOT_MODIFIED.getStatusCode()) {
+            LOG.ok("Not modified since version {0}", version);
+            response.close();
+            return Optional.empty();
+        }
+
+        JsonNode result = readResult(response);
+        if (result == null) {
+            SCIMv11Utils.handleGeneralError("While retrieving data from SCIM API");
+        }
+        return Optional.of(result);
+    }
 
+    private JsonNode readResult(final Response response) {
+        JsonNode result = null;
         try {
-            Response response = webClient.get();
             String responseAsString = response.readEntity(String.class);
             checkServiceErrors(response);
             result = SCIMv11Utils.MAPPER.readTree(responseAsString);
@@ -140,10 +418,119 @@ public class SCIMv11Service {
         return result;
     }
 
-    protected void doCreate(final User user, final WebClient webClient) {
+    /**
+     * Runs the given GET request and decodes the returned list response while reading it from the network: each
+     * element of {@code Resources} is converted to {@link User}, together with its custom attributes, and passed to
+     * the given handler as soon as available.
+     *
+     * @param webClient web client
+     * @param handler receives each decoded user
+     * @return list response metadata, with no resources
+     */
+    protected PagedResults<User> doGetUsers(final WebClient webClient, final UserHandler handler) {
+        return doGetUsers(webClient, handler, null);
+    }
+
+    /**
+     * Same as {@link #doGetUsers(WebClient, UserHandler)}, also reporting how many bytes were read.
+     *
+     * @param webClient web client
+     * @param handler receives each decoded user
+     * @param bodySize if not null, receives the size of the response body once read
+     * @return list response metadata, with no resources
+     */
+    protected PagedResults<User> doGetUsers(
+            final WebClient webClient, final UserHandler handler, final LongConsumer bodySize) {
+
+        LOG.ok("GET: {0}", webClient.getCurrentURI());
+        PagedResults<User> result = new PagedResults<>();
+
+        Response response = invoke(webClient, HttpMethod.GET, null);
+        try {
+            checkFilterErrors(webClient, response);
+            checkServiceErrors(response);
+
+            try (JsonParser parser = SCIMv11Utils.MAPPER.getFactory()
+                    .createParser(response.readEntity(InputStream.class))) {
+
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    SCIMv11Utils.handleGeneralError("Wrong response from GET request: no JSON object found");
+                }
+
+                boolean proceed = true;
+                while (proceed && parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    switch (field) {
+                        case "totalResults":
+                            result.setTotalResults(parser.getValueAsInt());
+                            break;
+
+                        case "itemsPerPage":
+                            result.setItemsPerPage(parser.getValueAsInt());
+                            break;
+
+                        case "startIndex":
+                            result.setStartIndex(parser.getValueAsInt());
+                            break;
+
+                        case RESPONSE_RESOURCES:
+                            proceed = readUsers(parser, handler);
+                            break;
+
+                        case RESPONSE_ERRORS:
+                            SCIMv11Utils.handleGeneralError(
+                                    "While executing request: " + SCIMv11Utils.MAPPER.readTree(parser));
+                            break;
+
+                        default:
+                            parser.skipChildren();
+                    }
+                }
+
+                if (bodySize != null) {
+                    bodySize.accept(parser.getCurrentLocation().getByteOffset());
+                }
+            }
+        } catch (IOException ex) {
+            SCIMv11Utils.handleGeneralError("While retrieving Users from service", ex);
+        } finally {
+            response.close();
+        }
+
+        return result;
+    }
+
+    private boolean readUsers(final JsonParser parser, final UserHandler handler) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return true;
+        }
+
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            User user;
+            if (customSchema == null) {
+                user = SCIMv11Utils.MAPPER.readValue(parser, User.class);
+            } else {
+                // custom attributes are read from the same tree, with no further parsing
+                JsonNode node = SCIMv11Utils.MAPPER.readTree(parser);
+                user = SCIMv11Utils.MAPPER.treeToValue(node, User.class);
+                readCustomAttributes(user, node);
+            }
+            userNameIndex.put(user);
+
+            if (!handler.handle(user)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected JsonNode doCreate(final User user, final WebClient webClient) {
         LOG.ok("CREATE: {0}", webClient.getCurrentURI());
         Response response;
         String payload = null;
+        JsonNode responseObj = null;
 
         try {
             // check custom attributes
@@ -162,12 +549,12 @@ public class SCIMv11Service {
                 // no custom attributes
                 payload = SCIMv11Utils.MAPPER.writeValueAsString(user);
             }
-            response = webClient.post(payload);
+            response = invoke(webClient, HttpMethod.POST, payload);
 
             checkServiceErrors(response);
             String value = SCIMv11Attributes.USER_ATTRIBUTE_ID;
             String responseAsString = response.readEntity(String.class);
-            JsonNode responseObj = SCIMv11Utils.MAPPER.readTree(responseAsString);
+            responseObj = SCIMv11Utils.MAPPER.readTree(responseAsString);
             if (responseObj.hasNonNull(value)) {
                 user.setId(responseObj.get(value).textValue());
             } else {
@@ -179,6 +566,8 @@ public class SCIMv11Service {
             LOG.error("CREATE payload {0}: ", payload);
             SCIMv11Utils.handleGeneralError("While creating User", ex);
         }
+
+        return responseObj;
     }
 
     protected JsonNode doUpdate(final User user, final WebClient webClient) {
@@ -186,9 +575,6 @@ public class SCIMv11Service {
         JsonNode result = null;
         Response response;
         String payload = null;
-        if (config.getUpdateMethod().equalsIgnoreCase("PATCH")) {
-            WebClient.getConfig(webClient).getRequestContext().put("use.async.http.conduit", true);
-        }
 
         try {
             // check custom attributes
@@ -209,9 +595,9 @@ public class SCIMv11Service {
             }
 
             if (config.getUpdateMethod().equalsIgnoreCase("PATCH")) {
-                response = webClient.invoke("PATCH", payload);
+                response = invoke(webClient, "PATCH", payload);
             } else {
-                response = webClient.put(payload);
+                response = invoke(webClient, HttpMethod.PUT, payload);
             }
 
             checkServiceErrors(response);
@@ -227,9 +613,15 @@ public class SCIMv11Service {
 
     protected void doDelete(final String userId, final WebClient webClient) {
         LOG.ok("DELETE: {0}", webClient.getCurrentURI());
-        int status = webClient.delete().getStatus();
-        if (status != Status.NO_CONTENT.getStatusCode() && status != Status.OK.getStatusCode()) {
-            throw new NoSuchEntityException(userId);
+        Response response = invoke(webClient, HttpMethod.DELETE, null);
+        try {
+            int status = response.getStatus();
+            if (status != Status.NO_CONTENT.getStatusCode() && status != Status.OK.getStatusCode()) {
+                throw new NoSuchEntityException(userId);
+            }
+        } finally {
+            // error bodies are not read: the pooled connection is released anyway
+            response.close();
         }
     }
 
@@ -240,7 +632,7 @@ public class SCIMv11Service {
             ObjectNode userIdNode = SCIMv11Utils.MAPPER.createObjectNode();
             userIdNode.set("user_id", userIdNode.textNode(userId));
 
-            response = webClient.post(SCIMv11Utils.MAPPER.writeValueAsString(userIdNode));
+            response = invoke(webClient, HttpMethod.POST, SCIMv11Utils.MAPPER.writeValueAsString(userIdNode));
             if (response == null) {
                 SCIMv11Utils.handleGeneralError("While activating User - no response");
             } else {
@@ -257,13 +649,27 @@ public class SCIMv11Service {
             SCIMv11Utils.handleGeneralError("While executing request - no response");
         }
 
-        String responseAsString = response.readEntity(String.class);
+        // response body is read here only in case of error, to leave it available for streaming otherwise
         if (response.getStatus() == Status.NOT_FOUND.getStatusCode()) {
-            throw new NoSuchEntityException(responseAsString);
+            throw NoSuchEntityException.notFound(response.readEntity(String.class));
         } else if (response.getStatus() != Status.OK.getStatusCode()
                 && response.getStatus() != Status.ACCEPTED.getStatusCode()
                 && response.getStatus() != Status.CREATED.getStatusCode()) {
-            SCIMv11Utils.handleGeneralError("While executing request: " + responseAsString);
+            SCIMv11Utils.handleGeneralError("While executing request: " + response.readEntity(String.class));
+        }
+    }
+
+    /**
+     * SCIM 1.1 services reply with 400 to filters they cannot evaluate, some with 501 to filter operators they do
+     * not implement.
+     */
+    private void checkFilterErrors(final WebClient webClient, final Response response) {
+        String query = webClient.getCurrentURI().getRawQuery();
+        if (response != null && query != null && ("&" + query).contains("&filter=")
+                && (response.getStatus() == Status.BAD_REQUEST.getStatusCode()
+                || response.getStatus() == Status.NOT_IMPLEMENTED.getStatusCode())) {
+
+            throw new FilterRejectedException(response.readEntity(String.class));
         }
     }
 
@@ -374,29 +780,19 @@ public class SCIMv11Service {
     }
 
     protected void readCustomAttributes(final User user, final JsonNode node) {
-        if (StringUtil.isNotBlank(config.getCustomAttributesJSON())) {
-            SCIMSchema scimSchema = extractSCIMSchemas(config.getCustomAttributesJSON());
-
-            if (scimSchema != null && !scimSchema.getAttributes().isEmpty()) {
-                for (SCIMAttribute attribute : scimSchema.getAttributes()) {
-                    List<JsonNode> foundWithSchemaAsKey = node.findValues(attribute.getSchema());
-                    if (!foundWithSchemaAsKey.isEmpty() && foundWithSchemaAsKey.get(0).has(attribute.getName())) {
-                        List<Object> values = new ArrayList<>();
-                        values.add(foundWithSchemaAsKey.get(0).get(attribute.getName()).textValue());
-                        user.getReturnedCustomAttributes().put(
-                                attribute.getSchema()
-                                        .concat(".")
-                                        .concat(attribute.getName()),
-                                values);
-                    }
+        if (customSchema != null) {
+            for (SCIMAttribute attribute : customSchema.getAttributes()) {
+                List<JsonNode> foundWithSchemaAsKey = node.findValues(attribute.getSchema());
+                if (!foundWithSchemaAsKey.isEmpty() && foundWithSchemaAsKey.get(0).has(attribute.getName())) {
+                    List<Object> values = new ArrayList<>();
+                    values.add(foundWithSchemaAsKey.get(0).get(attribute.getName()).textValue());
+                    user.getReturnedCustomAttributes().put(
+                            attribute.getSchema()
+                                    .concat(".")
+                                    .concat(attribute.getName()),
+                            values);
                 }
             }
         }
     }
-
-    protected void readCustomAttributes(final PagedResults<User> resources, final JsonNode node) {
-        for (User resource : resources.getResources()) {
-            readCustomAttributes(resource, node);
-        }
-    }
 }
@@ -0,0 +1,154 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.tirasa.connid.bundles.scimv11.dto.User;
+
+/**
+ * Users as read from the service, by id: entries expire after the configured time, and the least recently used ones
+ * are evicted when the configured size is exceeded. Expired entries are kept until evicted, so that they can be
+ * revalidated with the service rather than read again.
+ */
+public class UserCache {
+
+    private final long ttl;
+
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize maximum number of Users
+     * @param ttlSeconds how long (in seconds) a User is kept
+     */
+    public UserCache(final int maxSize, final int ttlSeconds) {
+        this.ttl = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = -2425137012937425436L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param id User id
+     * @return cached User, or null if not cached or expired
+     */
+    public User get(final String id) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(id);
+            if (entry != null && entry.isExpired()) {
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.user;
+    }
+
+    /**
+     * @param id User id
+     * @return cached User, even if expired, or null if not cached
+     */
+    public User getStale(final String id) {
+        synchronized (entries) {
+            Entry entry = entries.get(id);
+            return entry == null ? null : entry.user;
+        }
+    }
+
+    /**
+     * Renews the given User, as the service reported it unchanged since cached; the read counts as a hit.
+     *
+     * @param user User as returned by {@link #getStale(java.lang.String)}
+     */
+    public void revalidated(final User user) {
+        put(user);
+        misses.decrementAndGet();
+        hits.incrementAndGet();
+    }
+
+    /**
+     * @param user User as read from the service
+     */
+    public void put(final User user) {
+        if (user.getId() != null) {
+            synchronized (entries) {
+                entries.put(user.getId(), new Entry(user, System.nanoTime() + ttl));
+            }
+        }
+    }
+
+    /**
+     * @param id id of the User changed or removed
+     */
+    public void invalidate(final String id) {
+        synchronized (entries) {
+            entries.remove(id);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return number of reads served by this cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of reads not served by this cache
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static final class Entry {
+
+        private final User user;
+
+        private final long expiration;
+
+        private Entry(final User user, final long expiration) {
+            this.user = user;
+            this.expiration = expiration;
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - expiration > 0;
+        }
+    }
+}
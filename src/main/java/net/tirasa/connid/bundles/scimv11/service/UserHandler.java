@@ -0,0 +1,33 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import net.tirasa.connid.bundles.scimv11.dto.User;
+
+/**
+ * Receives users as soon as they are decoded from a list response.
+ */
+@FunctionalInterface
+public interface UserHandler {
+
+    /**
+     * Handles the given user.
+     *
+     * @param user decoded user
+     * @return true to keep on receiving users, false to stop
+     */
+    boolean handle(User user);
+}
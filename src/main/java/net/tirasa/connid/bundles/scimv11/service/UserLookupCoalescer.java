@@ -0,0 +1,207 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import net.tirasa.connid.bundles.scimv11.dto.User;
+import net.tirasa.connid.bundles.scimv11.utils.SCIMv11Attributes;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * Collects concurrent lookups of single Users by id or userName for a short time window, then resolves them all with
+ * a single batch request, handing each caller the Users matching its own lookup.
+ */
+class UserLookupCoalescer {
+
+    private static final Log LOG = Log.getLog(UserLookupCoalescer.class);
+
+    private final SCIMv11Client client;
+
+    private final long window;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Runs batch requests, so that the scheduler is only busy triggering them.
+     */
+    private final ExecutorService sender;
+
+    private final Object lock = new Object();
+
+    /**
+     * Batches still collecting lookups, by attribute path.
+     */
+    private final Map<String, Batch> pending = new HashMap<>();
+
+    /**
+     * @param client client to run batch requests with
+     * @param window how long (in milliseconds) lookups are collected before being sent
+     */
+    UserLookupCoalescer(final SCIMv11Client client, final long window) {
+        this.client = client;
+        this.window = window;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SCIMv11 lookup coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // as many threads as batches being sent, each awaited by at least one caller
+        this.sender = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "SCIMv11 lookup batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param path {@code id} or {@code userName}
+     * @param value value to look up
+     * @param attributesToGet attributes to get, merged with the ones of the other lookups in the same batch
+     * @return Users matching the given value
+     */
+    public List<User> lookup(final String path, final String value, final Set<String> attributesToGet) {
+        CompletableFuture<List<User>> result;
+        Batch full = null;
+        synchronized (lock) {
+            Batch batch = pending.get(path);
+            if (batch == null) {
+                Batch scheduled = new Batch(path);
+                pending.put(path, scheduled);
+                scheduler.schedule(() -> flush(scheduled), window, TimeUnit.MILLISECONDS);
+                batch = scheduled;
+            }
+
+            result = batch.add(value, attributesToGet);
+            if (batch.size() >= SCIMv11Client.MAX_BATCH_SIZE) {
+                // no point in waiting any longer, the batch is sent by the caller filling it
+                pending.remove(path);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            full.run();
+        }
+
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while reading Users", e);
+        } catch (ExecutionException e) {
+            throw ConnectorException.wrap(e.getCause());
+        }
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+        sender.shutdownNow();
+        synchronized (lock) {
+            pending.values().forEach(batch -> batch.fail(new ConnectorException("Client closed")));
+            pending.clear();
+        }
+    }
+
+    private void flush(final Batch batch) {
+        synchronized (lock) {
+            if (pending.get(batch.path) != batch) {
+                // already sent, being full
+                return;
+            }
+            pending.remove(batch.path);
+        }
+        try {
+            sender.execute(batch::run);
+        } catch (RejectedExecutionException e) {
+            batch.fail(new ConnectorException("Client closed"));
+        }
+    }
+
+    private final class Batch {
+
+        private final String path;
+
+        private final Map<String, CompletableFuture<List<User>>> lookups = new HashMap<>();
+
+        private final Set<String> attributesToGet = new HashSet<>();
+
+        private Batch(final String path) {
+            this.path = path;
+        }
+
+        private CompletableFuture<List<User>> add(final String value, final Set<String> attributes) {
+            attributesToGet.addAll(attributes);
+            return lookups.computeIfAbsent(key(value), key -> new CompletableFuture<>());
+        }
+
+        private int size() {
+            return lookups.size();
+        }
+
+        /**
+         * userNames are matched ignoring case, as compared by SCIM services.
+         */
+        private String key(final String value) {
+            return SCIMv11Attributes.USER_ATTRIBUTE_USERNAME.equals(path) ? value.toLowerCase(Locale.ROOT) : value;
+        }
+
+        private void run() {
+            LOG.ok("Looking up {0} Users by {1}", lookups.size(), path);
+
+            Map<String, List<User>> found = new HashMap<>();
+            try {
+                UserHandler handler = user -> {
+                    String value = SCIMv11Attributes.USER_ATTRIBUTE_USERNAME.equals(path)
+                            ? user.getUserName()
+                            : user.getId();
+                    if (value != null) {
+                        found.computeIfAbsent(key(value), key -> new ArrayList<>()).add(user);
+                    }
+                    return true;
+                };
+                if (SCIMv11Attributes.USER_ATTRIBUTE_USERNAME.equals(path)) {
+                    client.getUsersByUserName(lookups.keySet(), attributesToGet, handler);
+                } else {
+                    client.getUsersById(lookups.keySet(), attributesToGet, handler);
+                }
+            } catch (RuntimeException e) {
+                fail(e);
+                return;
+            }
+
+            lookups.forEach((value, result) -> result.complete(
+                    found.getOrDefault(value, Collections.<User>emptyList())));
+        }
+
+        private void fail(final RuntimeException e) {
+            lookups.values().forEach(result -> result.completeExceptionally(e));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import net.tirasa.connid.bundles.scimv11.dto.User;
+
+/**
+ * Ids of the Users seen so far, by userName; entries may become stale when Users are renamed or removed by others,
+ * so that Users found through this index shall be checked.
+ */
+class UserNameIndex {
+
+    /**
+     * Maximum number of entries: when reached, further Users are not indexed.
+     */
+    private static final int MAX_SIZE = 100000;
+
+    private final Map<String, String> idsByUserName = new ConcurrentHashMap<>();
+
+    private final Map<String, String> userNamesById = new ConcurrentHashMap<>();
+
+    /**
+     * @param userName userName
+     * @return id of the User with the given userName, as last seen, or null if unknown
+     */
+    public String get(final String userName) {
+        return idsByUserName.get(key(userName));
+    }
+
+    /**
+     * @param user User as read from the service
+     */
+    public void put(final User user) {
+        if (user.getId() == null || user.getUserName() == null
+                || (idsByUserName.size() >= MAX_SIZE && !userNamesById.containsKey(user.getId()))) {
+
+            return;
+        }
+
+        String key = key(user.getUserName());
+        String previous = userNamesById.put(user.getId(), key);
+        if (previous != null && !previous.equals(key)) {
+            idsByUserName.remove(previous, user.getId());
+        }
+        idsByUserName.put(key, user.getId());
+    }
+
+    /**
+     * @param id id of the User renamed or removed
+     */
+    public void invalidate(final String id) {
+        String userName = userNamesById.remove(id);
+        if (userName != null) {
+            idsByUserName.remove(userName, id);
+        }
+    }
+
+    /**
+     * userNames are matched ignoring case, as compared by SCIM services.
+     */
+    private static String key(final String userName) {
+        return userName.toLowerCase(Locale.ROOT);
+    }
+}
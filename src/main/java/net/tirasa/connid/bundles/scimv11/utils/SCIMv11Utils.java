@@ -57,6 +57,25 @@ public class SCIMv11Utils {
         throw ConnectorException.wrap(ex);
     }
 
+    /**
+     * @param value value to compare with, in a filter expression
+     * @return the given value as it shall appear in a filter expression: quoted, unless boolean or numeric
+     */
+    public static String toFilterValue(final Object value) {
+        if (value instanceof Boolean || value instanceof Number) {
+            return value.toString();
+        }
+
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toString().toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\');
+            }
+            quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
     public static boolean isEmptyObject(final Object obj) {
         return obj == null
                 || (obj instanceof List ? new ArrayList<>((List<?>) obj).isEmpty() : false)
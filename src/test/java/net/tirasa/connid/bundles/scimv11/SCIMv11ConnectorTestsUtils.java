@@ -93,12 +93,75 @@ public class SCIMv11ConnectorTestsUtils {
                 case "auth.accessTokenContentType":
                     connectorConfiguration.setAccessTokenContentType(entry.getValue());
                     break;
+                case "auth.accessTokenExpiresInNodeId":
+                    connectorConfiguration.setAccessTokenExpiresInNodeId(entry.getValue());
+                    break;
+                case "auth.accessTokenRefreshPercentage":
+                    connectorConfiguration.setAccessTokenRefreshPercentage(Integer.parseInt(entry.getValue()));
+                    break;
                 case "auth.customAttributesJSON":
                     connectorConfiguration.setCustomAttributesJSON(entry.getValue());
                     break;
                 case "auth.updateMethod":
                     connectorConfiguration.setUpdateMethod(entry.getValue());
                     break;
+                case "auth.pageSize":
+                    connectorConfiguration.setPageSize(Integer.parseInt(entry.getValue()));
+                    break;
+                case "auth.prefetchPages":
+                    connectorConfiguration.setPrefetchPages(Integer.parseInt(entry.getValue()));
+                    break;
+                case "auth.scanParallelism":
+                    connectorConfiguration.setScanParallelism(Integer.parseInt(entry.getValue()));
+                    break;
+                case "auth.scanOrdered":
+                    connectorConfiguration.setScanOrdered(Boolean.parseBoolean(entry.getValue()));
+                    break;
+                case "auth.adaptivePageSize":
+                    connectorConfiguration.setAdaptivePageSize(Boolean.parseBoolean(entry.getValue()));
+                    break;
+                case "auth.minPageSize":
+                    connectorConfiguration.setMinPageSize(Integer.parseInt(entry.getValue()));
+                    break;
+                case "auth.maxPageSize":
+                    connectorConfiguration.setMaxPageSize(Integer.parseInt(entry.getValue()));
+                    break;
+                case "auth.pageTargetTime":
+                    connectorConfiguration.setPageTargetTime(Integer.parseInt(entry.getValue()));
+                    break;
+                case "auth.pageTargetBytes":
+                    connectorConfiguration.setPageTargetBytes(Integer.parseInt(entry.getValue()));
+                    break;
+                case "auth.consistentScan":
+                    connectorConfiguration.setConsistentScan(Boolean.parseBoolean(entry.getValue()));
+                    break;
+                case "auth.sortBufferSize":
+                    connectorConfiguration.setSortBufferSize(Integer.parseInt(entry.getValue()));
+                    break;
+                case "auth.lookupBatchWindow":
+                    connectorConfiguration.setLookupBatchWindow(Integer.parseInt(entry.getValue()));
+                    break;
+                case "auth.userCacheSize":
+                    connectorConfiguration.setUserCacheSize(Integer.parseInt(entry.getValue()));
+                    break;
+                case "auth.userCacheTtl":
+                    connectorConfiguration.setUserCacheTtl(Integer.parseInt(entry.getValue()));
+                    break;
+                case "auth.notFoundCacheTtl":
+                    connectorConfiguration.setNotFoundCacheTtl(Integer.parseInt(entry.getValue()));
+                    break;
+                case "auth.queryCacheTtl":
+                    connectorConfiguration.setQueryCacheTtl(Integer.parseInt(entry.getValue()));
+                    break;
+                case "auth.maxConnections":
+                    connectorConfiguration.setMaxConnections(Integer.parseInt(entry.getValue()));
+                    break;
+                case "auth.maxConnectionsPerRoute":
+                    connectorConfiguration.setMaxConnectionsPerRoute(Integer.parseInt(entry.getValue()));
+                    break;
+                case "auth.connectionMaxIdle":
+                    connectorConfiguration.setConnectionMaxIdle(Integer.parseInt(entry.getValue()));
+                    break;
                 case "auth.defaultEntitlement":
                     connectorConfiguration.setUpdateMethod(entry.getValue());
                     break;
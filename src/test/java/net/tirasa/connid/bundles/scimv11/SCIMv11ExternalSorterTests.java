@@ -0,0 +1,150 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SortKey;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.junit.jupiter.api.Test;
+
+public class SCIMv11ExternalSorterTests {
+
+    private static ConnectorObject object(final int index, final String displayName) {
+        ConnectorObjectBuilder builder = new ConnectorObjectBuilder()
+                .setObjectClass(ObjectClass.ACCOUNT)
+                .setUid(String.format("id%04d", index))
+                .setName(String.format("user%04d", index));
+        if (displayName != null) {
+            builder.addAttribute(AttributeBuilder.build("displayName", displayName));
+        }
+        return builder.build();
+    }
+
+    private static List<String> replay(final SCIMv11ExternalSorter sorter, final int offset) {
+        List<String> names = new ArrayList<>();
+        sorter.replay(offset, object -> names.add(object.getName().getNameValue()));
+        return names;
+    }
+
+    private static int runFiles() {
+        File[] files = new File(System.getProperty("java.io.tmpdir"))
+                .listFiles((dir, name) -> name.startsWith("scimv11-sort") && name.endsWith(".run"));
+        return files == null ? 0 : files.length;
+    }
+
+    @Test
+    public void inMemory() {
+        try (SCIMv11ExternalSorter sorter = new SCIMv11ExternalSorter(
+                new SortKey[] { new SortKey("displayName", true) }, 10)) {
+
+            sorter.handle(object(1, "b"));
+            sorter.handle(object(2, "A"));
+            sorter.handle(object(3, null));
+            sorter.handle(object(4, "c"));
+
+            assertEquals(4, sorter.getCount());
+            // strings ignoring case, missing values last
+            assertEquals(Arrays.asList("user0002", "user0001", "user0004", "user0003"), replay(sorter, 0));
+            assertEquals(Arrays.asList("user0004", "user0003"), replay(sorter, 2));
+        }
+    }
+
+    @Test
+    public void descendingThenBy() {
+        try (SCIMv11ExternalSorter sorter = new SCIMv11ExternalSorter(new SortKey[] {
+            new SortKey("displayName", false), new SortKey(Name.NAME, true) }, 10)) {
+
+            sorter.handle(object(3, "a"));
+            sorter.handle(object(1, "b"));
+            sorter.handle(object(2, "a"));
+
+            assertEquals(Arrays.asList("user0001", "user0002", "user0003"), replay(sorter, 0));
+        }
+    }
+
+    @Test
+    public void spillAndMerge() {
+        int before = runFiles();
+        List<Integer> shuffled = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+        Collections.shuffle(shuffled, new Random(42));
+
+        // 1000 objects in runs of 7 are more than 64 runs, hence merged in more passes
+        SCIMv11ExternalSorter sorter = new SCIMv11ExternalSorter(new SortKey[] { new SortKey(Uid.NAME, true) }, 7);
+        try {
+            shuffled.forEach(index -> sorter.handle(object(index, "x")));
+            assertTrue(runFiles() > before);
+
+            List<String> sorted = replay(sorter, 0);
+            assertEquals(1000, sorted.size());
+            for (int i = 0; i < sorted.size(); i++) {
+                assertEquals(String.format("user%04d", i), sorted.get(i));
+            }
+
+            // the same sorted results can be replayed from any offset, as for following pages
+            assertEquals(Arrays.asList("user0500", "user0501"), replay(sorter, 500).subList(0, 2));
+        } finally {
+            sorter.close();
+        }
+        assertEquals(before, runFiles());
+    }
+
+    @Test
+    public void stopEarly() {
+        try (SCIMv11ExternalSorter sorter = new SCIMv11ExternalSorter(
+                new SortKey[] { new SortKey(Uid.NAME, true) }, 3)) {
+
+            IntStream.range(0, 10).forEach(index -> sorter.handle(object(9 - index, null)));
+
+            List<String> names = new ArrayList<>();
+            sorter.replay(0, object -> names.add(object.getName().getNameValue()) && names.size() < 4);
+            assertEquals(Arrays.asList("user0000", "user0001", "user0002", "user0003"), names);
+        }
+    }
+
+    @Test
+    public void sortAttributesRemovedButOperational() {
+        List<ConnectorObject> handled = new ArrayList<>();
+        SCIMv11Connector.SortedResultsHandler handler = new SCIMv11Connector.SortedResultsHandler(
+                handled::add, new HashSet<>(Arrays.asList(Name.NAME, "displayName")), 1);
+
+        assertFalse(handler.handle(object(1, "a")));
+        assertEquals(1, handler.getHandled());
+
+        ConnectorObject object = handled.get(0);
+        assertNotNull(object.getUid());
+        assertEquals("user0001", object.getName().getNameValue());
+        assertNull(object.getAttributeByName("displayName"));
+    }
+}
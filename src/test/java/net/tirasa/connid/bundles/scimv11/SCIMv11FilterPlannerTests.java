@@ -0,0 +1,228 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import net.tirasa.connid.bundles.scimv11.dto.SCIMUserName;
+import net.tirasa.connid.bundles.scimv11.dto.User;
+import net.tirasa.connid.bundles.scimv11.service.FilterCapabilities;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.identityconnectors.framework.common.objects.filter.FilterVisitor;
+import org.junit.jupiter.api.Test;
+
+public class SCIMv11FilterPlannerTests {
+
+    private static final Filter NAME = FilterBuilder.equalTo(new Name("john"));
+
+    private static final Filter TITLE = FilterBuilder.contains(AttributeBuilder.build("title", "Dev"));
+
+    private static final Filter UNKNOWN = FilterBuilder.equalTo(AttributeBuilder.build("unknown", "x"));
+
+    /**
+     * Unknown to the connector, matching any object.
+     */
+    private static final Filter EXTENDED = new Filter() {
+
+        @Override
+        public boolean accept(final ConnectorObject obj) {
+            return true;
+        }
+
+        @Override
+        public <R, P> R accept(final FilterVisitor<R, P> v, final P p) {
+            return v.visitExtendedFilter(p, this);
+        }
+    };
+
+    private static User user(final String userName, final String title) {
+        User user = new User();
+        user.setId(userName);
+        user.setUserName(userName);
+        user.setTitle(title);
+        return user;
+    }
+
+    private static boolean matches(final SCIMv11FilterPlanner.Plan plan, final User user) {
+        return plan.getResidual().test(new SCIMv11FilterPlanner.Candidate(user));
+    }
+
+    private static FilterCapabilities capabilities() {
+        return new FilterCapabilities(TimeUnit.HOURS.toMillis(1));
+    }
+
+    @Test
+    public void noFilter() {
+        SCIMv11FilterPlanner.Plan plan = SCIMv11FilterPlanner.plan(null, null, null);
+        assertNull(plan.getFilterQuery());
+        assertNull(plan.getResidual());
+    }
+
+    @Test
+    public void pushedDown() {
+        SCIMv11FilterPlanner.Plan plan = SCIMv11FilterPlanner.plan(FilterBuilder.and(NAME, TITLE), null, null);
+        assertEquals("(userName eq \"john\" and title co \"Dev\")", plan.getFilterQuery());
+        assertNull(plan.getResidual());
+        assertTrue(plan.getResidualAttributes().isEmpty());
+        assertEquals(Collections.singletonList("and"), plan.getLogicalOperators());
+        assertEquals(Arrays.asList("userName eq \"john\"", "title co \"Dev\""), plan.getComparisons().stream()
+                .map(SCIMv11FilterTranslator.Comparison::getExpression)
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void andSplit() {
+        SCIMv11FilterPlanner.Plan plan = SCIMv11FilterPlanner.plan(FilterBuilder.and(NAME, UNKNOWN), null, null);
+        assertEquals("userName eq \"john\"", plan.getFilterQuery());
+        assertEquals(Collections.singleton("unknown"), plan.getResidualAttributes());
+        assertTrue(plan.getLogicalOperators().isEmpty());
+
+        User john = user("john", "Dev");
+        assertFalse(matches(plan, john));
+        john.getReturnedCustomAttributes().put("unknown", Collections.singletonList("x"));
+        assertTrue(matches(plan, john));
+    }
+
+    @Test
+    public void orNotSplit() {
+        SCIMv11FilterPlanner.Plan plan = SCIMv11FilterPlanner.plan(FilterBuilder.or(NAME, UNKNOWN), null, null);
+        assertNull(plan.getFilterQuery());
+        assertTrue(plan.getComparisons().isEmpty());
+        assertTrue(matches(plan, user("john", null)));
+        assertFalse(matches(plan, user("jane", null)));
+    }
+
+    @Test
+    public void rejectedAnd() {
+        FilterCapabilities capabilities = capabilities();
+        capabilities.reject("and");
+
+        SCIMv11FilterPlanner.Plan plan = SCIMv11FilterPlanner.plan(
+                FilterBuilder.and(NAME, TITLE), null, capabilities);
+        assertEquals("userName eq \"john\"", plan.getFilterQuery());
+        assertEquals(Collections.singleton("title"), plan.getResidualAttributes());
+        assertTrue(plan.getLogicalOperators().isEmpty());
+        assertTrue(matches(plan, user("john", "Developer")));
+        assertFalse(matches(plan, user("john", "Manager")));
+    }
+
+    @Test
+    public void rejectedOr() {
+        FilterCapabilities capabilities = capabilities();
+        capabilities.reject("or");
+
+        SCIMv11FilterPlanner.Plan plan = SCIMv11FilterPlanner.plan(
+                FilterBuilder.or(NAME, TITLE), null, capabilities);
+        assertNull(plan.getFilterQuery());
+        assertTrue(matches(plan, user("jane", "Developer")));
+        assertTrue(matches(plan, user("john", "Manager")));
+        assertFalse(matches(plan, user("jane", "Manager")));
+    }
+
+    @Test
+    public void rejectedComparison() {
+        FilterCapabilities capabilities = capabilities();
+        capabilities.reject("title", "co");
+
+        SCIMv11FilterPlanner.Plan plan = SCIMv11FilterPlanner.plan(
+                FilterBuilder.and(NAME, TITLE), null, capabilities);
+        assertEquals("userName eq \"john\"", plan.getFilterQuery());
+        assertEquals(1, plan.getComparisons().size());
+        assertTrue(matches(plan, user("john", "Developer")));
+        assertFalse(matches(plan, user("john", "Manager")));
+    }
+
+    @Test
+    public void approximate() {
+        SCIMv11FilterPlanner.Plan plan = SCIMv11FilterPlanner.plan(
+                FilterBuilder.equalTo(AttributeBuilder.build("emails.work.value", "john@example.com")), null, null);
+        assertEquals("(emails.value eq \"john@example.com\" and emails.type eq \"work\")", plan.getFilterQuery());
+        assertNotNull(plan.getResidual());
+        assertEquals(Collections.singletonList("and"), plan.getLogicalOperators());
+    }
+
+    @Test
+    public void quotedOperators() {
+        SCIMv11FilterPlanner.Plan plan = SCIMv11FilterPlanner.plan(FilterBuilder.and(
+                NAME, FilterBuilder.equalTo(AttributeBuilder.build("displayName", "Smith or Jones"))), null, null);
+        assertEquals(Collections.singletonList("and"), plan.getLogicalOperators());
+    }
+
+    @Test
+    public void extended() {
+        SCIMv11FilterPlanner.Plan plan = SCIMv11FilterPlanner.plan(FilterBuilder.and(NAME, EXTENDED), null, null);
+        assertEquals("userName eq \"john\"", plan.getFilterQuery());
+        assertNull(plan.getResidual());
+
+        // left to the framework as a whole, not evaluated locally as if the extended filter never matched
+        plan = SCIMv11FilterPlanner.plan(FilterBuilder.not(EXTENDED), null, null);
+        assertNull(plan.getFilterQuery());
+        assertNull(plan.getResidual());
+
+        plan = SCIMv11FilterPlanner.plan(FilterBuilder.not(FilterBuilder.and(UNKNOWN, EXTENDED)), null, null);
+        assertNull(plan.getFilterQuery());
+        assertNull(plan.getResidual());
+
+        plan = SCIMv11FilterPlanner.plan(FilterBuilder.or(NAME, EXTENDED), null, null);
+        assertNull(plan.getFilterQuery());
+        assertNull(plan.getResidual());
+    }
+
+    @Test
+    public void attributesConvertedOnce() throws IllegalAccessException {
+        AtomicInteger conversions = new AtomicInteger();
+        User user = new User() {
+
+            @Override
+            public Set<Attribute> toAttributes() throws IllegalArgumentException, IllegalAccessException {
+                conversions.incrementAndGet();
+                return super.toAttributes();
+            }
+        };
+        SCIMUserName name = new SCIMUserName();
+        name.setFamilyName("Doe");
+        user.setName(name);
+
+        FilterCapabilities capabilities = capabilities();
+        capabilities.reject("or");
+        SCIMv11FilterPlanner.Plan plan = SCIMv11FilterPlanner.plan(FilterBuilder.or(
+                FilterBuilder.equalTo(AttributeBuilder.build("name.familyName", "Smith")),
+                FilterBuilder.startsWith(AttributeBuilder.build("name.familyName", "D"))), null, capabilities);
+        assertNull(plan.getFilterQuery());
+
+        // both conditions are evaluated on the same converted attributes
+        SCIMv11FilterPlanner.Candidate candidate = new SCIMv11FilterPlanner.Candidate(user);
+        assertTrue(plan.getResidual().test(candidate));
+        assertSame(candidate.getAttributes(), candidate.getAttributes());
+        assertEquals(1, conversions.get());
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import net.tirasa.connid.bundles.scimv11.dto.SCIMAttribute;
+import net.tirasa.connid.bundles.scimv11.dto.SCIMSchema;
+import net.tirasa.connid.bundles.scimv11.service.FilterCapabilities;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.AttributeFilter;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.junit.jupiter.api.Test;
+
+public class SCIMv11FilterTranslatorTests {
+
+    private static String translate(final Filter filter) {
+        return new SCIMv11FilterTranslator().toFilterQuery(filter);
+    }
+
+    @Test
+    public void comparisons() {
+        assertEquals("userName eq \"john\"", translate(FilterBuilder.equalTo(new Name("john"))));
+        assertEquals("id eq \"1234\"", translate(FilterBuilder.equalTo(new Uid("1234"))));
+        assertEquals("active eq true",
+                translate(FilterBuilder.equalTo(AttributeBuilder.build(OperationalAttributes.ENABLE_NAME, true))));
+        assertEquals("displayName co \"oh\"",
+                translate(FilterBuilder.contains(AttributeBuilder.build("displayName", "oh"))));
+        assertEquals("displayName sw \"Jo\"",
+                translate(FilterBuilder.startsWith(AttributeBuilder.build("displayName", "Jo"))));
+        assertEquals("meta.lastModified gt \"2020-01-01\"",
+                translate(FilterBuilder.greaterThan(AttributeBuilder.build("meta.lastModified", "2020-01-01"))));
+        assertEquals("meta.lastModified ge \"2020-01-01\"", translate(
+                FilterBuilder.greaterThanOrEqualTo(AttributeBuilder.build("meta.lastModified", "2020-01-01"))));
+        assertEquals("meta.created lt \"2020-01-01\"",
+                translate(FilterBuilder.lessThan(AttributeBuilder.build("meta.created", "2020-01-01"))));
+        assertEquals("meta.created le \"2020-01-01\"",
+                translate(FilterBuilder.lessThanOrEqualTo(AttributeBuilder.build("meta.created", "2020-01-01"))));
+    }
+
+    @Test
+    public void equalsIgnoreCase() {
+        assertEquals("userName eq \"John\"", translate(FilterBuilder.equalsIgnoreCase(new Name("John"))));
+        assertEquals("displayName eq \"John\"",
+                translate(FilterBuilder.equalsIgnoreCase(AttributeBuilder.build("displayName", "John"))));
+
+        // case exact, hence left to be filtered on all Users
+        assertNull(translate(FilterBuilder.equalsIgnoreCase(new Uid("AbC"))));
+        assertNull(translate(FilterBuilder.equalsIgnoreCase(AttributeBuilder.build("externalId", "AbC"))));
+        assertNull(translate(FilterBuilder.not(FilterBuilder.equalsIgnoreCase(new Name("John")))));
+    }
+
+    @Test
+    public void presence() {
+        assertEquals("title pr", translate(FilterBuilder.not(FilterBuilder.equalTo(AttributeBuilder.build("title")))));
+        assertNull(translate(FilterBuilder.equalTo(AttributeBuilder.build("title"))));
+    }
+
+    @Test
+    public void quoting() {
+        assertEquals("displayName eq \"say \\\"hi\\\" \\\\ bye\"",
+                translate(FilterBuilder.equalTo(AttributeBuilder.build("displayName", "say \"hi\" \\ bye"))));
+        assertEquals("displayName eq \"Smith or Jones\"",
+                translate(FilterBuilder.equalTo(AttributeBuilder.build("displayName", "Smith or Jones"))));
+    }
+
+    @Test
+    public void logical() {
+        Filter name = FilterBuilder.equalTo(new Name("john"));
+        Filter title = FilterBuilder.startsWith(AttributeBuilder.build("title", "Dev"));
+        assertEquals("(userName eq \"john\" and title sw \"Dev\")", translate(FilterBuilder.and(name, title)));
+        assertEquals("(userName eq \"john\" or title sw \"Dev\")", translate(FilterBuilder.or(name, title)));
+    }
+
+    @Test
+    public void untranslatable() {
+        Filter unknown = FilterBuilder.equalTo(AttributeBuilder.build("unknown", "x"));
+        Filter name = FilterBuilder.equalTo(new Name("john"));
+
+        assertNull(translate(unknown));
+        assertNull(translate(FilterBuilder.not(name)));
+        assertNull(translate(FilterBuilder.equalTo(AttributeBuilder.build("title", "a", "b"))));
+        // AND keeps the translatable part, to be filtered again anyway; OR cannot
+        assertEquals("userName eq \"john\"", translate(FilterBuilder.and(name, unknown)));
+        assertNull(translate(FilterBuilder.or(name, unknown)));
+    }
+
+    @Test
+    public void multiValued() {
+        AttributeFilter work = (AttributeFilter) FilterBuilder.equalTo(
+                AttributeBuilder.build("emails.work.value", "john@example.com"));
+        assertEquals("(emails.value eq \"john@example.com\" and emails.type eq \"work\")", translate(work));
+        assertTrue(SCIMv11FilterTranslator.isApproximate(work));
+
+        AttributeFilter untyped = (AttributeFilter) FilterBuilder.equalTo(
+                AttributeBuilder.build("emails.default.value", "john@example.com"));
+        assertEquals("emails.value eq \"john@example.com\"", translate(untyped));
+
+        AttributeFilter single = (AttributeFilter) FilterBuilder.equalTo(new Name("john"));
+        assertFalse(SCIMv11FilterTranslator.isApproximate(single));
+    }
+
+    private static SCIMAttribute customAttribute(final String name, final String type, final Boolean caseExact) {
+        SCIMAttribute attribute = new SCIMAttribute();
+        attribute.setSchema("urn:scim:schemas:extension:enterprise:1.0");
+        attribute.setName(name);
+        attribute.setType(type);
+        attribute.setCaseExact(caseExact);
+        return attribute;
+    }
+
+    @Test
+    public void custom() {
+        SCIMSchema customSchema = new SCIMSchema();
+        customSchema.getAttributes().add(customAttribute("employeeNumber", "string", null));
+        customSchema.getAttributes().add(customAttribute("costCenter", "string", true));
+        customSchema.getAttributes().add(customAttribute("manager", "complex", null));
+        SCIMv11FilterTranslator translator = new SCIMv11FilterTranslator(customSchema, null);
+
+        assertEquals("urn:scim:schemas:extension:enterprise:1.0.employeeNumber eq \"701984\"",
+                translator.toFilterQuery(FilterBuilder.equalTo(AttributeBuilder.build(
+                        "urn:scim:schemas:extension:enterprise:1.0.employeeNumber", "701984"))));
+        assertEquals("urn:scim:schemas:extension:enterprise:1.0.costCenter sw \"4\"",
+                translator.toFilterQuery(FilterBuilder.startsWith(AttributeBuilder.build(
+                        "urn:scim:schemas:extension:enterprise:1.0.costCenter", "4"))));
+
+        // case exact
+        assertNull(translator.toFilterQuery(FilterBuilder.equalsIgnoreCase(AttributeBuilder.build(
+                "urn:scim:schemas:extension:enterprise:1.0.costCenter", "4130"))));
+        // complex
+        assertNull(translator.toFilterQuery(FilterBuilder.equalTo(AttributeBuilder.build(
+                "urn:scim:schemas:extension:enterprise:1.0.manager", "John"))));
+        // unknown, by name alone or with another schema
+        assertNull(translator.toFilterQuery(FilterBuilder.equalTo(AttributeBuilder.build(
+                "employeeNumber", "701984"))));
+        assertNull(translator.toFilterQuery(FilterBuilder.equalTo(AttributeBuilder.build(
+                "urn:scim:schemas:extension:other:1.0.employeeNumber", "701984"))));
+        // not known without custom attributes
+        assertNull(translate(FilterBuilder.equalTo(AttributeBuilder.build(
+                "urn:scim:schemas:extension:enterprise:1.0.employeeNumber", "701984"))));
+
+        // unknown part of AND left out, to be filtered again
+        assertEquals("urn:scim:schemas:extension:enterprise:1.0.employeeNumber eq \"701984\"",
+                translator.toFilterQuery(FilterBuilder.and(
+                        FilterBuilder.equalTo(AttributeBuilder.build(
+                                "urn:scim:schemas:extension:enterprise:1.0.employeeNumber", "701984")),
+                        FilterBuilder.equalTo(AttributeBuilder.build("unknown", "x")))));
+    }
+
+    @Test
+    public void rejected() {
+        FilterCapabilities capabilities = new FilterCapabilities(TimeUnit.HOURS.toMillis(1));
+        capabilities.reject("and");
+        capabilities.reject("title", "co");
+        SCIMv11FilterTranslator translator = new SCIMv11FilterTranslator(null, capabilities);
+
+        // type condition left out, as evaluated again anyway
+        assertEquals("emails.value eq \"john@example.com\"", translator.toFilterQuery(
+                FilterBuilder.equalTo(AttributeBuilder.build("emails.work.value", "john@example.com"))));
+        assertNull(translator.toFilterQuery(FilterBuilder.contains(AttributeBuilder.build("title", "Dev"))));
+        assertEquals("title sw \"Dev\"",
+                translator.toFilterQuery(FilterBuilder.startsWith(AttributeBuilder.build("title", "Dev"))));
+    }
+
+    @Test
+    public void comparisonsRecorded() {
+        SCIMv11FilterTranslator translator = new SCIMv11FilterTranslator();
+        translator.toFilterQuery(FilterBuilder.or(
+                FilterBuilder.equalTo(new Name("john")),
+                FilterBuilder.contains(AttributeBuilder.build("title", "Dev"))));
+
+        Map<String, SCIMv11FilterTranslator.Comparison> comparisons = new HashMap<>();
+        translator.getComparisons().forEach(comparison -> comparisons.put(comparison.getExpression(), comparison));
+        assertEquals(2, comparisons.size());
+
+        SCIMv11FilterTranslator.Comparison name = comparisons.get("userName eq \"john\"");
+        assertEquals("userName", name.getPath());
+        assertEquals("eq", name.getOperator());
+        assertEquals("\"john\"", name.getValue());
+        assertTrue(comparisons.containsKey("title co \"Dev\""));
+        assertTrue(translator.getLogicalOperators().contains("or"));
+        assertFalse(translator.getLogicalOperators().contains("and"));
+    }
+
+    @Test
+    public void quotedOperatorsNotRecorded() {
+        SCIMv11FilterTranslator translator = new SCIMv11FilterTranslator();
+        translator.toFilterQuery(FilterBuilder.equalTo(AttributeBuilder.build("displayName", "Smith or Jones")));
+        assertTrue(translator.getLogicalOperators().isEmpty());
+    }
+
+    @Test
+    public void sortPath() {
+        SCIMv11FilterTranslator translator = new SCIMv11FilterTranslator();
+        assertEquals("userName", translator.getSortPath(Name.NAME));
+        assertEquals("displayName", translator.getSortPath("displayName"));
+        assertNull(translator.getSortPath("emails.work.value"));
+        assertNull(translator.getSortPath("unknown"));
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.identityconnectors.framework.common.objects.SortKey;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.junit.jupiter.api.Test;
+
+public class SCIMv11SortedResultsTests {
+
+    private static SCIMv11ExternalSorter sorter() {
+        return new SCIMv11ExternalSorter(new SortKey[] { new SortKey(Uid.NAME, true) }, 10);
+    }
+
+    @Test
+    public void takeOnce() {
+        try (SCIMv11SortedResults results = new SCIMv11SortedResults(TimeUnit.MINUTES.toMillis(1))) {
+            SCIMv11ExternalSorter sorter = sorter();
+            String key = results.put(sorter);
+
+            assertSame(sorter, results.take(key));
+            // owned by whoever took it, until put back
+            assertNull(results.take(key));
+            assertNull(results.take("unknown"));
+
+            String next = results.put(sorter);
+            assertNotEquals(key, next);
+            assertSame(sorter, results.take(next));
+        }
+    }
+
+    @Test
+    public void eviction() {
+        try (SCIMv11SortedResults results = new SCIMv11SortedResults(TimeUnit.MINUTES.toMillis(1))) {
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i <= SCIMv11SortedResults.MAX_SIZE; i++) {
+                keys.add(results.put(sorter()));
+            }
+
+            assertEquals(SCIMv11SortedResults.MAX_SIZE, results.size());
+            // the oldest was evicted
+            assertNull(results.take(keys.get(0)));
+            assertNotNull(results.take(keys.get(1)));
+            assertEquals(SCIMv11SortedResults.MAX_SIZE - 1, results.size());
+        }
+    }
+
+    @Test
+    public void expiration() throws InterruptedException {
+        try (SCIMv11SortedResults results = new SCIMv11SortedResults(50)) {
+            String key = results.put(sorter());
+            Thread.sleep(100);
+
+            assertNull(results.take(key));
+            assertEquals(0, results.size());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import net.tirasa.connid.bundles.scimv11.SCIMv11ConnectorConfiguration;
+import org.junit.jupiter.api.Test;
+
+public class AdaptivePageSizeTests {
+
+    private static AdaptivePageSize pageSize(final int initial) {
+        SCIMv11ConnectorConfiguration config = new SCIMv11ConnectorConfiguration();
+        config.setPageSize(initial);
+        config.setMinPageSize(10);
+        config.setMaxPageSize(1000);
+        config.setPageTargetTime(2000);
+        config.setPageTargetBytes(1000000);
+        return new AdaptivePageSize(config);
+    }
+
+    @Test
+    public void initialBounded() {
+        assertEquals(100, pageSize(100).get());
+        assertEquals(1000, pageSize(5000).get());
+        assertEquals(10, pageSize(1).get());
+    }
+
+    @Test
+    public void byTime() {
+        AdaptivePageSize pageSize = pageSize(100);
+
+        pageSize.update(100, 2000, -1);
+        assertEquals(100, pageSize.get());
+
+        // much faster than target, but at most doubled
+        pageSize.update(100, 100, -1);
+        assertEquals(200, pageSize.get());
+
+        // much slower than target, but at most halved
+        pageSize.update(200, 8000, -1);
+        assertEquals(100, pageSize.get());
+
+        pageSize.update(100, 2500, -1);
+        assertEquals(80, pageSize.get());
+    }
+
+    @Test
+    public void byBytes() {
+        AdaptivePageSize pageSize = pageSize(100);
+
+        // fast, but with a body bigger than target
+        pageSize.update(100, 100, 1250000);
+        assertEquals(80, pageSize.get());
+
+        // body size unknown
+        pageSize.update(80, 1000, -1);
+        assertEquals(160, pageSize.get());
+    }
+
+    @Test
+    public void fewReadOrNone() {
+        AdaptivePageSize pageSize = pageSize(100);
+
+        pageSize.update(0, 10000, -1);
+        assertEquals(100, pageSize.get());
+
+        // last page, with less users than asked for: not shrunk more than half
+        pageSize.update(5, 100, -1);
+        assertEquals(50, pageSize.get());
+    }
+
+    @Test
+    public void bounded() {
+        AdaptivePageSize pageSize = pageSize(800);
+        pageSize.update(800, 100, -1);
+        assertEquals(1000, pageSize.get());
+
+        pageSize = pageSize(15);
+        pageSize.update(15, 10000, -1);
+        assertEquals(10, pageSize.get());
+    }
+
+    @Test
+    public void shrink() {
+        AdaptivePageSize pageSize = pageSize(100);
+
+        assertTrue(pageSize.shrink());
+        assertEquals(50, pageSize.get());
+        assertTrue(pageSize.shrink());
+        assertEquals(25, pageSize.get());
+        assertTrue(pageSize.shrink());
+        assertEquals(12, pageSize.get());
+        assertTrue(pageSize.shrink());
+        assertEquals(10, pageSize.get());
+
+        assertFalse(pageSize.shrink());
+        assertEquals(10, pageSize.get());
+    }
+}
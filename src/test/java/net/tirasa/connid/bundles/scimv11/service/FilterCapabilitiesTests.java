@@ -0,0 +1,89 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class FilterCapabilitiesTests {
+
+    @Test
+    public void comparison() {
+        FilterCapabilities capabilities = new FilterCapabilities(TimeUnit.HOURS.toMillis(1));
+        capabilities.reject("displayName", "co");
+
+        assertFalse(capabilities.isSupported("displayName", "co"));
+        assertTrue(capabilities.isSupported("displayName", "eq"));
+        assertTrue(capabilities.isSupported("title", "co"));
+        assertTrue(capabilities.isSupported("co"));
+    }
+
+    @Test
+    public void generalization() {
+        FilterCapabilities capabilities = new FilterCapabilities(TimeUnit.HOURS.toMillis(1));
+        capabilities.reject("displayName", "co");
+        capabilities.reject("title", "co");
+
+        assertFalse(capabilities.isSupported("nickName", "co"));
+        assertTrue(capabilities.isSupported("nickName", "sw"));
+    }
+
+    @Test
+    public void path() {
+        FilterCapabilities capabilities = new FilterCapabilities(TimeUnit.HOURS.toMillis(1));
+        capabilities.reject("title", "eq");
+        assertTrue(capabilities.isSupported("title", "sw"));
+
+        capabilities.rejectPath("title");
+        assertFalse(capabilities.isSupported("title", "sw"));
+        assertTrue(capabilities.isSupported("displayName", "eq"));
+    }
+
+    @Test
+    public void logical() {
+        FilterCapabilities capabilities = new FilterCapabilities(TimeUnit.HOURS.toMillis(1));
+        capabilities.reject("or");
+
+        assertFalse(capabilities.isSupported("or"));
+        assertTrue(capabilities.isSupported("and"));
+    }
+
+    @Test
+    public void expiration() throws InterruptedException {
+        FilterCapabilities capabilities = new FilterCapabilities(50);
+        capabilities.reject("or");
+        capabilities.rejectPath("title");
+        assertFalse(capabilities.isSupported("or"));
+
+        Thread.sleep(100);
+        assertTrue(capabilities.isSupported("or"));
+        assertTrue(capabilities.isSupported("title", "eq"));
+    }
+
+    @Test
+    public void clear() {
+        FilterCapabilities capabilities = new FilterCapabilities(TimeUnit.HOURS.toMillis(1));
+        capabilities.reject("and");
+        capabilities.reject("displayName", "co");
+
+        capabilities.clear();
+        assertTrue(capabilities.isSupported("and"));
+        assertTrue(capabilities.isSupported("displayName", "co"));
+    }
+}
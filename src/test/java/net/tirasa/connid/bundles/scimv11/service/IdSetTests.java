@@ -0,0 +1,94 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import net.tirasa.connid.bundles.scimv11.dto.User;
+import org.junit.jupiter.api.Test;
+
+public class IdSetTests {
+
+    private static User user(final String id) {
+        User user = new User();
+        user.setId(id);
+        return user;
+    }
+
+    @Test
+    public void add() {
+        IdSet ids = new IdSet();
+        assertTrue(ids.add("1"));
+        assertTrue(ids.add("2"));
+        assertTrue(ids.add(""));
+        assertFalse(ids.add("1"));
+        assertFalse(ids.add(""));
+        assertEquals(3, ids.size());
+    }
+
+    @Test
+    public void grown() {
+        IdSet ids = new IdSet();
+        List<String> added = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            String id = UUID.randomUUID().toString();
+            added.add(id);
+            assertTrue(ids.add(id));
+        }
+        assertEquals(100000, ids.size());
+
+        // all still found after the table was grown several times
+        assertTrue(added.stream().noneMatch(ids::add));
+        assertEquals(100000, ids.size());
+    }
+
+    @Test
+    public void uniqueUsers() {
+        List<String> handled = new ArrayList<>();
+        SCIMv11Client.UniqueUserHandler handler = new SCIMv11Client.UniqueUserHandler(
+                user -> handled.add(user.getId()) && handled.size() < 5);
+
+        handler.page();
+        assertTrue(handler.handle(user("1")));
+        assertTrue(handler.handle(user("2")));
+        assertFalse(handler.isPageOverlapping());
+
+        // next page, re-reading the last User of the previous one
+        handler.page();
+        assertTrue(handler.handle(user("2")));
+        assertTrue(handler.handle(user("3")));
+        assertTrue(handler.isPageOverlapping());
+
+        // next page, not overlapping as Users were removed meanwhile
+        handler.page();
+        assertTrue(handler.handle(user(null)));
+        assertFalse(handler.isPageOverlapping());
+        assertTrue(handler.handle(user("3")));
+        assertFalse(handler.isStopped());
+
+        assertFalse(handler.handle(user("4")));
+        assertTrue(handler.isStopped());
+
+        assertEquals(5, handler.getHandled());
+        assertEquals(Arrays.asList("1", "2", "3", null, "4"), handled);
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class NotFoundCacheTests {
+
+    @Test
+    public void notFound() {
+        NotFoundCache cache = new NotFoundCache(60);
+        cache.idNotFound("1");
+        cache.userNameNotFound("John");
+
+        assertTrue(cache.isIdNotFound("1"));
+        assertFalse(cache.isIdNotFound("2"));
+        // userNames ignoring case, ids and userNames apart
+        assertTrue(cache.isUserNameNotFound("jOHN"));
+        assertFalse(cache.isUserNameNotFound("1"));
+        assertFalse(cache.isIdNotFound("John"));
+    }
+
+    @Test
+    public void found() {
+        NotFoundCache cache = new NotFoundCache(60);
+        cache.idNotFound("1");
+        cache.userNameNotFound("john");
+
+        cache.found("1", "JOHN");
+        assertFalse(cache.isIdNotFound("1"));
+        assertFalse(cache.isUserNameNotFound("john"));
+
+        cache.idNotFound("2");
+        cache.found(null, "jane");
+        assertTrue(cache.isIdNotFound("2"));
+    }
+
+    @Test
+    public void expiration() throws InterruptedException {
+        NotFoundCache cache = new NotFoundCache(1);
+        cache.idNotFound("1");
+        Thread.sleep(1100);
+
+        assertFalse(cache.isIdNotFound("1"));
+    }
+
+    @Test
+    public void stackTrace() {
+        // lookups not finding the User are cheap, other failures keep their stack trace
+        assertEquals(0, NoSuchEntityException.notFound("User 1 not found").getStackTrace().length);
+        assertTrue(new NoSuchEntityException("1").getStackTrace().length > 0);
+    }
+}
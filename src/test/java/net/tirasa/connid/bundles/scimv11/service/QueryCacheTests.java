@@ -0,0 +1,165 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import net.tirasa.connid.bundles.scimv11.dto.PagedResults;
+import net.tirasa.connid.bundles.scimv11.dto.User;
+import org.junit.jupiter.api.Test;
+
+public class QueryCacheTests {
+
+    private static Map<String, String> params(final String filter, final String attributes) {
+        Map<String, String> params = new HashMap<>();
+        params.put("filter", filter);
+        params.put("startIndex", "1");
+        params.put("count", "100");
+        params.put("attributes", attributes);
+        return params;
+    }
+
+    private static List<User> users(final int size) {
+        return IntStream.range(0, size).mapToObj(index -> {
+            User user = new User();
+            user.setId("id" + index);
+            return user;
+        }).collect(Collectors.toList());
+    }
+
+    private static PagedResults<User> metadata(final int totalResults) {
+        PagedResults<User> metadata = new PagedResults<>();
+        metadata.setTotalResults(totalResults);
+        metadata.setStartIndex(1);
+        return metadata;
+    }
+
+    private static void put(final QueryCache cache, final Map<String, String> params, final int size) {
+        cache.put(params, metadata(size), users(size), cache.getGeneration());
+    }
+
+    @Test
+    public void wholeResultsOnly() {
+        QueryCache cache = new QueryCache(60);
+
+        Map<String, String> whole = params("userName eq \"john\"", "id");
+        put(cache, whole, 1);
+        assertEquals(1, cache.get(whole).getResources().size());
+
+        // first page of more
+        Map<String, String> partial = params("title eq \"Dev\"", "id");
+        cache.put(partial, metadata(250), users(100), cache.getGeneration());
+        assertNull(cache.get(partial));
+
+        // following page
+        Map<String, String> following = params("title eq \"Dev\"", "id");
+        following.put("startIndex", "101");
+        cache.put(following, metadata(250), users(100), cache.getGeneration());
+        assertNull(cache.get(following));
+
+        // not filtered
+        Map<String, String> unfiltered = params(null, "id");
+        unfiltered.remove("filter");
+        cache.put(unfiltered, metadata(1), users(1), cache.getGeneration());
+        assertNull(cache.get(unfiltered));
+
+        // no total reported: only a short page is known to be the last one
+        Map<String, String> noTotal = params("title eq \"Manager\"", "id");
+        cache.put(noTotal, metadata(0), users(100), cache.getGeneration());
+        assertNull(cache.get(noTotal));
+        cache.put(noTotal, metadata(0), users(99), cache.getGeneration());
+        assertNotNull(cache.get(noTotal));
+    }
+
+    @Test
+    public void sortedAttributes() {
+        QueryCache cache = new QueryCache(60);
+        put(cache, params("userName eq \"john\"", "userName,id,title"), 1);
+
+        assertNotNull(cache.get(params("userName eq \"john\"", "id,title,userName")));
+        assertNull(cache.get(params("userName eq \"john\"", "id,userName")));
+    }
+
+    @Test
+    public void evictedBySize() {
+        QueryCache cache = new QueryCache(60);
+        for (int i = 0; i <= QueryCache.MAX_SIZE; i++) {
+            put(cache, params("userName eq \"user" + i + "\"", "id"), 1);
+        }
+
+        assertEquals(QueryCache.MAX_SIZE, cache.size());
+        assertNull(cache.get(params("userName eq \"user0\"", "id")));
+        assertNotNull(cache.get(params("userName eq \"user1\"", "id")));
+    }
+
+    @Test
+    public void evictedByUsers() {
+        QueryCache cache = new QueryCache(60);
+        int size = QueryCache.MAX_USERS / 4;
+        for (int i = 0; i < 4; i++) {
+            put(cache, params("title eq \"title" + i + "\"", "id"), size);
+        }
+        // the least recently used
+        assertNotNull(cache.get(params("title eq \"title0\"", "id")));
+
+        put(cache, params("title eq \"title4\"", "id"), size);
+        assertEquals(4, cache.size());
+        assertNotNull(cache.get(params("title eq \"title0\"", "id")));
+        assertNull(cache.get(params("title eq \"title1\"", "id")));
+
+        // exceeding the limit alone
+        put(cache, params("title eq \"all\"", "id"), QueryCache.MAX_USERS + 1);
+        assertNull(cache.get(params("title eq \"all\"", "id")));
+        assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void generations() {
+        QueryCache cache = new QueryCache(60);
+        Map<String, String> params = params("userName eq \"john\"", "id");
+        put(cache, params, 1);
+
+        long requested = cache.getGeneration();
+        cache.invalidate();
+        assertNull(cache.get(params));
+
+        // requested before the change, hence possibly stale
+        cache.put(params, metadata(1), users(1), requested);
+        assertNull(cache.get(params));
+
+        put(cache, params, 1);
+        assertNotNull(cache.get(params));
+    }
+
+    @Test
+    public void expiration() throws InterruptedException {
+        QueryCache cache = new QueryCache(1);
+        Map<String, String> params = params("userName eq \"john\"", "id");
+        put(cache, params, 1);
+        assertNotNull(cache.get(params));
+
+        Thread.sleep(1100);
+        assertNull(cache.get(params));
+        assertEquals(0, cache.size());
+    }
+}
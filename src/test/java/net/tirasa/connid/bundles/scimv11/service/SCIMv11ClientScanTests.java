@@ -0,0 +1,337 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import net.tirasa.connid.bundles.scimv11.SCIMv11ConnectorConfiguration;
+import net.tirasa.connid.bundles.scimv11.dto.PagedResults;
+import net.tirasa.connid.bundles.scimv11.dto.User;
+import net.tirasa.connid.bundles.scimv11.utils.SCIMv11Attributes;
+import net.tirasa.connid.bundles.scimv11.utils.SCIMv11Utils;
+import org.apache.cxf.jaxrs.client.WebClient;
+import org.identityconnectors.common.security.GuardedString;
+import org.junit.jupiter.api.Test;
+
+public class SCIMv11ClientScanTests {
+
+    /**
+     * Serves pages of Users with no request, keeping track of the parameters of each page asked for.
+     */
+    private static class StubClient extends SCIMv11Client {
+
+        private final List<String> ids;
+
+        private final List<Map<String, String>> requests = new CopyOnWriteArrayList<>();
+
+        private final Random random = new Random(42);
+
+        private boolean sortSupported = true;
+
+        /**
+         * Maximum number of Users per page, whatever the count asked for.
+         */
+        private int maxCount = Integer.MAX_VALUE;
+
+        /**
+         * Whether {@code totalResults} is returned.
+         */
+        private boolean withTotal = true;
+
+        /**
+         * Whether Users are returned in a different order by each request, unless sorted.
+         */
+        private boolean unstableOrder = false;
+
+        StubClient(final SCIMv11ConnectorConfiguration config, final int size) {
+            super(config);
+            this.ids = IntStream.rangeClosed(1, size)
+                    .mapToObj(index -> String.format("id%04d", index))
+                    .collect(Collectors.toList());
+        }
+
+        private static Map<String, String> params(final WebClient webClient) {
+            Map<String, String> params = new HashMap<>();
+            for (String param : webClient.getCurrentURI().getRawQuery().split("&")) {
+                String[] pair = param.split("=", 2);
+                try {
+                    params.put(pair[0], URLDecoder.decode(pair[1], StandardCharsets.UTF_8.name()));
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return params;
+        }
+
+        @Override
+        protected JsonNode doGet(final WebClient webClient) {
+            // ServiceProviderConfigs
+            return SCIMv11Utils.MAPPER.createObjectNode()
+                    .set("sort", SCIMv11Utils.MAPPER.createObjectNode().put("supported", sortSupported));
+        }
+
+        @Override
+        protected PagedResults<User> doGetUsers(
+                final WebClient webClient, final UserHandler handler, final LongConsumer bodySize) {
+
+            Map<String, String> params = params(webClient);
+            requests.add(params);
+
+            List<String> ordered = new ArrayList<>(ids);
+            if (SCIMv11Attributes.USER_ATTRIBUTE_ID.equals(params.get("sortBy"))) {
+                Collections.sort(ordered);
+            } else if (unstableOrder) {
+                synchronized (random) {
+                    Collections.shuffle(ordered, random);
+                }
+            }
+
+            int startIndex = Integer.parseInt(params.getOrDefault("startIndex", "1"));
+            int count = Math.min(maxCount,
+                    Integer.parseInt(params.getOrDefault("count", String.valueOf(ordered.size()))));
+            PagedResults<User> page = new PagedResults<>();
+            page.setTotalResults(withTotal ? ordered.size() : 0);
+            page.setStartIndex(startIndex);
+            for (String id : ordered.subList(
+                    Math.min(ordered.size(), startIndex - 1), Math.min(ordered.size(), startIndex - 1 + count))) {
+
+                User user = new User();
+                user.setId(id);
+                if (!handler.handle(user)) {
+                    break;
+                }
+            }
+            return page;
+        }
+    }
+
+    private static SCIMv11ConnectorConfiguration config() {
+        SCIMv11ConnectorConfiguration config = new SCIMv11ConnectorConfiguration();
+        config.setBaseAddress("http://localhost:1/");
+        config.setUsername("user");
+        config.setPassword(new GuardedString("password".toCharArray()));
+        config.setPageSize(10);
+        return config;
+    }
+
+    private static List<String> readAll(final SCIMv11Client client) {
+        List<String> read = new CopyOnWriteArrayList<>();
+        client.getAllUsers(null, Collections.singleton(SCIMv11Attributes.USER_ATTRIBUTE_ID),
+                user -> read.add(user.getId()));
+        return read;
+    }
+
+    private static List<Integer> startIndexes(final StubClient client) {
+        return client.requests.stream()
+                .map(params -> Integer.valueOf(params.get("startIndex")))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void pageByPage() {
+        StubClient client = new StubClient(config(), 95);
+        try {
+            assertEquals(client.ids, readAll(client));
+            assertEquals(Arrays.asList(1, 11, 21, 31, 41, 51, 61, 71, 81, 91), startIndexes(client));
+            assertTrue(client.requests.stream().allMatch(params -> "10".equals(params.get("count"))));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void pageByPageWithoutTotal() {
+        StubClient client = new StubClient(config(), 30);
+        client.withTotal = false;
+        try {
+            assertEquals(client.ids, readAll(client));
+            // a full page is followed by another one, found empty
+            assertEquals(Arrays.asList(1, 11, 21, 31), startIndexes(client));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void pageByPageStopped() {
+        StubClient client = new StubClient(config(), 95);
+        try {
+            List<String> read = new ArrayList<>();
+            client.getAllUsers(null, Collections.singleton(SCIMv11Attributes.USER_ATTRIBUTE_ID),
+                    user -> read.add(user.getId()) && read.size() < 15);
+            assertEquals(client.ids.subList(0, 15), read);
+            assertEquals(Arrays.asList(1, 11), startIndexes(client));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void consistentScanSorted() {
+        SCIMv11ConnectorConfiguration config = config();
+        config.setConsistentScan(true);
+        StubClient client = new StubClient(config, 95);
+        client.unstableOrder = true;
+        try {
+            List<String> read = readAll(client);
+            assertEquals(95, read.size());
+            assertEquals(95, new HashSet<>(read).size());
+            assertTrue(client.requests.stream()
+                    .allMatch(params -> SCIMv11Attributes.USER_ATTRIBUTE_ID.equals(params.get("sortBy"))));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void consistentScanNotSortable() {
+        SCIMv11ConnectorConfiguration config = config();
+        config.setConsistentScan(true);
+        StubClient client = new StubClient(config, 25);
+        client.sortSupported = false;
+        try {
+            assertEquals(25, readAll(client).size());
+            assertFalse(client.requests.stream().anyMatch(params -> params.containsKey("sortBy")));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void prefetch() {
+        SCIMv11ConnectorConfiguration config = config();
+        config.setPrefetchPages(2);
+        StubClient client = new StubClient(config, 95);
+        try {
+            assertEquals(client.ids, readAll(client));
+            assertEquals(10, client.requests.size());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void prefetchCapped() {
+        SCIMv11ConnectorConfiguration config = config();
+        config.setPrefetchPages(2);
+        StubClient client = new StubClient(config, 40);
+        client.maxCount = 4;
+        try {
+            assertEquals(client.ids, readAll(client));
+            // pages requested after the first one follow its length, none is requested again
+            assertEquals(10, client.requests.size());
+            assertEquals(IntStream.iterate(1, index -> index + 4).limit(10).boxed().collect(Collectors.toList()),
+                    startIndexes(client));
+        } finally {
+            client.close();
+        }
+    }
+
+    private static SCIMv11ConnectorConfiguration scanConfig() {
+        SCIMv11ConnectorConfiguration config = config();
+        config.setScanParallelism(3);
+        config.setScanOrdered(false);
+        return config;
+    }
+
+    @Test
+    public void scanPartitions() {
+        StubClient client = new StubClient(scanConfig(), 95);
+        try {
+            List<String> read = readAll(client);
+            assertEquals(95, read.size());
+            assertEquals(new HashSet<>(client.ids), new HashSet<>(read));
+
+            // each index requested exactly once
+            int[] requested = new int[96];
+            client.requests.forEach(params -> {
+                int startIndex = Integer.parseInt(params.get("startIndex"));
+                int count = Integer.parseInt(params.get("count"));
+                IntStream.range(startIndex, Math.min(96, startIndex + count)).forEach(index -> requested[index]++);
+            });
+            assertTrue(IntStream.rangeClosed(1, 95).allMatch(index -> requested[index] == 1));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void scanStopped() throws InterruptedException {
+        StubClient client = new StubClient(scanConfig(), 1000);
+        try {
+            List<String> read = new CopyOnWriteArrayList<>();
+            client.getAllUsers(null, Collections.singleton(SCIMv11Attributes.USER_ATTRIBUTE_ID),
+                    user -> read.add(user.getId()) && read.size() < 15);
+            assertEquals(15, read.size());
+
+            // partitions stop, at the latest when their pending pages are not taken in time
+            Thread.sleep(300);
+            int requests = client.requests.size();
+            assertTrue(requests < 100, "Pages requested: " + requests);
+            Thread.sleep(300);
+            assertEquals(requests, client.requests.size());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void scanWithoutTotal() {
+        StubClient client = new StubClient(scanConfig(), 35);
+        client.withTotal = false;
+        try {
+            // cannot be partitioned, hence read page by page after the first one
+            assertEquals(client.ids, readAll(client));
+            assertEquals(Arrays.asList(1, 11, 21, 31), startIndexes(client));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void scanOrdered() {
+        SCIMv11ConnectorConfiguration config = scanConfig();
+        config.setScanOrdered(true);
+        StubClient client = new StubClient(config, 95);
+        try {
+            // pages requested concurrently, but handed over in order
+            assertEquals(client.ids, readAll(client));
+            assertEquals(IntStream.iterate(1, index -> index + 10).limit(10).boxed().collect(Collectors.toList()),
+                    startIndexes(client));
+        } finally {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import net.tirasa.connid.bundles.scimv11.SCIMv11ConnectorConfiguration;
+import net.tirasa.connid.bundles.scimv11.dto.User;
+import net.tirasa.connid.bundles.scimv11.utils.SCIMv11Utils;
+import org.apache.cxf.jaxrs.client.WebClient;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.junit.jupiter.api.Test;
+
+public class SCIMv11ClientTests {
+
+    /**
+     * Replies to single User reads with no request, keeping track of the versions asked for.
+     */
+    private static class StubClient extends SCIMv11Client {
+
+        private final List<String> versions = new ArrayList<>();
+
+        private Optional<JsonNode> conditionalResult;
+
+        StubClient(final SCIMv11ConnectorConfiguration config) {
+            super(config);
+        }
+
+        @Override
+        protected JsonNode doGet(final WebClient webClient) {
+            versions.add(null);
+            return SCIMv11Utils.MAPPER.createObjectNode()
+                    .put("id", "1")
+                    .put("userName", "john")
+                    .set("meta", SCIMv11Utils.MAPPER.createObjectNode().put("version", "W/\"1\""));
+        }
+
+        @Override
+        protected Optional<JsonNode> doGet(final WebClient webClient, final String version) {
+            versions.add(version);
+            return conditionalResult;
+        }
+    }
+
+    private static StubClient client() {
+        SCIMv11ConnectorConfiguration config = new SCIMv11ConnectorConfiguration();
+        config.setBaseAddress("http://localhost:1/");
+        config.setUsername("user");
+        config.setPassword(new GuardedString("password".toCharArray()));
+        config.setUserCacheSize(10);
+        config.setUserCacheTtl(1);
+        return new StubClient(config);
+    }
+
+    private static int sentLength(final String expression) {
+        WebClient webClient = WebClient.create("http://localhost/Users").query("filter", expression);
+        return webClient.getCurrentURI().getRawQuery().length() - "filter=".length();
+    }
+
+    @Test
+    public void encodedLength() {
+        for (String expression : new String[] {
+            "userName eq \"john\"",
+            "userName eq \"john doe\" or userName eq \"jane\"",
+            "userName eq \"a/b?c&d=e+f\"",
+            "displayName eq \"José (\\\"Pepe\\\")\"",
+            " or " }) {
+
+            assertEquals(sentLength(expression), SCIMv11Client.encodedLength(expression), expression);
+        }
+    }
+
+    @Test
+    public void notModified() throws InterruptedException {
+        StubClient client = client();
+        try {
+            User user = client.getUser("1");
+            Thread.sleep(1100);
+
+            // expired, but not modified since
+            client.conditionalResult = Optional.empty();
+            assertSame(user, client.getUser("1"));
+            assertEquals(Arrays.asList(null, "W/\"1\""), client.versions);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void emptyResponse() throws InterruptedException {
+        StubClient client = client();
+        try {
+            client.getUser("1");
+            Thread.sleep(1100);
+
+            // an empty body is not taken as not modified
+            client.conditionalResult = Optional.of(MissingNode.getInstance());
+            assertThrows(ConnectorException.class, () -> client.getUser("1"));
+        } finally {
+            client.close();
+        }
+    }
+}
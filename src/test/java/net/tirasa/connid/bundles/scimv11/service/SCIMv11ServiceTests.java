@@ -0,0 +1,355 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import javax.ws.rs.core.Response;
+import net.tirasa.connid.bundles.scimv11.SCIMv11ConnectorConfiguration;
+import net.tirasa.connid.bundles.scimv11.dto.PagedResults;
+import net.tirasa.connid.bundles.scimv11.dto.User;
+import org.apache.cxf.jaxrs.client.WebClient;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SCIMv11ServiceTests {
+
+    /**
+     * Replies to each request with the given body, with no request.
+     */
+    private static class StubService extends SCIMv11Service {
+
+        private String body;
+
+        private boolean closed;
+
+        StubService(final SCIMv11ConnectorConfiguration config) {
+            super(config);
+        }
+
+        @Override
+        protected Response invoke(final WebClient webClient, final String method, final Object body) {
+            return Response.ok(new ByteArrayInputStream(this.body.getBytes(StandardCharsets.UTF_8)) {
+
+                @Override
+                public void close() throws IOException {
+                    closed = true;
+                    super.close();
+                }
+            }).build();
+        }
+    }
+
+    private StubService service;
+
+    @BeforeEach
+    public void setUp() {
+        SCIMv11ConnectorConfiguration config = new SCIMv11ConnectorConfiguration();
+        config.setBaseAddress("http://localhost:1/");
+        config.setUsername("user");
+        config.setPassword(new GuardedString("password".toCharArray()));
+        service = new StubService(config);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        service.close();
+    }
+
+    private static String user(final String id) {
+        return "{\"id\":\"" + id + "\",\"userName\":\"user" + id + "\"}";
+    }
+
+    private PagedResults<User> getUsers(final String body, final List<User> users) {
+        service.body = body;
+        return service.doGetUsers(service.getWebclient("Users", null), users::add);
+    }
+
+    private static List<String> ids(final List<User> users) {
+        return users.stream().map(User::getId).collect(Collectors.toList());
+    }
+
+    @Test
+    public void metadataAndUsers() {
+        String body = "{\"schemas\":[\"urn:scim:schemas:core:1.0\"],\"totalResults\":12,\"itemsPerPage\":2,"
+                + "\"startIndex\":3,\"Resources\":[" + user("1") + "," + user("2") + "]}";
+        List<User> users = new ArrayList<>();
+        AtomicLong bodySize = new AtomicLong(-1);
+        service.body = body;
+        PagedResults<User> page = service.doGetUsers(service.getWebclient("Users", null), users::add, bodySize::set);
+
+        assertEquals(12, page.getTotalResults());
+        assertEquals(2, page.getItemsPerPage());
+        assertEquals(3, page.getStartIndex());
+        assertTrue(page.getResources().isEmpty());
+        assertEquals(Arrays.asList("1", "2"), ids(users));
+        assertEquals("user1", users.get(0).getUserName());
+        assertEquals(body.getBytes(StandardCharsets.UTF_8).length, bodySize.get());
+        assertTrue(service.closed);
+    }
+
+    @Test
+    public void resourcesFirst() {
+        List<User> users = new ArrayList<>();
+        PagedResults<User> page = getUsers("{\"Resources\":[" + user("1") + "],\"totalResults\":1}", users);
+        assertEquals(1, page.getTotalResults());
+        assertEquals(Arrays.asList("1"), ids(users));
+    }
+
+    @Test
+    public void emptyResources() {
+        List<User> users = new ArrayList<>();
+        PagedResults<User> page = getUsers("{\"totalResults\":0,\"Resources\":[]}", users);
+        assertEquals(0, page.getTotalResults());
+        assertTrue(users.isEmpty());
+
+        assertEquals(0, getUsers("{\"totalResults\":0}", users).getTotalResults());
+        assertEquals(0, getUsers("{\"totalResults\":0,\"Resources\":null}", users).getTotalResults());
+        assertTrue(users.isEmpty());
+    }
+
+    @Test
+    public void missingTotalResults() {
+        List<User> users = new ArrayList<>();
+        PagedResults<User> page = getUsers("{\"Resources\":[" + user("1") + "," + user("2") + "]}", users);
+        assertEquals(0, page.getTotalResults());
+        assertEquals(Arrays.asList("1", "2"), ids(users));
+    }
+
+    @Test
+    public void unknownAndNestedFields() {
+        List<User> users = new ArrayList<>();
+        PagedResults<User> page = getUsers("{\"unknown\":{\"nested\":[1,{\"totalResults\":5}],\"Resources\":[]},"
+                + "\"totalResults\":2,\"Resources\":["
+                + "{\"id\":\"1\",\"meta\":{\"version\":\"W/\\\"3\\\"\"},\"extra\":[{\"id\":\"x\"}]},"
+                + user("2") + "],\"trailing\":{\"id\":\"y\"}}", users);
+
+        assertEquals(2, page.getTotalResults());
+        assertEquals(Arrays.asList("1", "2"), ids(users));
+        assertEquals("W/\"3\"", users.get(0).getMeta().getVersion());
+    }
+
+    @Test
+    public void stoppedMidArray() {
+        List<String> ids = new ArrayList<>();
+        service.body = "{\"Resources\":[" + user("1") + "," + user("2") + "," + user("3") + "],\"totalResults\":3}";
+        PagedResults<User> page = service.doGetUsers(
+                service.getWebclient("Users", null), user -> ids.add(user.getId()) && ids.size() < 2);
+
+        assertEquals(Arrays.asList("1", "2"), ids);
+        // the rest of the response is not read
+        assertEquals(0, page.getTotalResults());
+        assertTrue(service.closed);
+    }
+
+    @Test
+    public void errors() {
+        List<User> users = new ArrayList<>();
+        assertThrows(ConnectorException.class,
+                () -> getUsers("{\"Errors\":[{\"description\":\"failure\",\"code\":\"500\"}]}", users));
+        assertThrows(ConnectorException.class, () -> getUsers("[" + user("1") + "]", users));
+        assertTrue(users.isEmpty());
+    }
+
+    /**
+     * Local token endpoint, issuing a new token to each request, and Users endpoint, rejecting the given token or
+     * all of them.
+     */
+    private static final class TokenServer implements AutoCloseable {
+
+        private final HttpServer server;
+
+        private final AtomicInteger tokens = new AtomicInteger();
+
+        private final List<String> authorizations = new CopyOnWriteArrayList<>();
+
+        private volatile String rejected;
+
+        private volatile boolean rejectAll;
+
+        TokenServer(final int expiresIn) throws IOException {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/token", exchange -> reply(exchange, 200,
+                    "{\"access_token\":\"t" + tokens.incrementAndGet() + "\",\"expires_in\":" + expiresIn + "}"));
+            server.createContext("/Users", exchange -> {
+                String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+                authorizations.add(authorization);
+                reply(exchange, rejectAll || authorization.equals(rejected) ? 401 : 200, "{}");
+            });
+            server.start();
+        }
+
+        private static void reply(final HttpExchange exchange, final int status, final String body)
+                throws IOException {
+
+            // request body read in full, as expected by the client before the response
+            try (InputStream in = exchange.getRequestBody()) {
+                while (in.read() != -1) {
+                    // discarded
+                }
+            }
+
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+
+        private String getAddress() {
+            return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+        }
+    }
+
+    private static SCIMv11Service tokenService(final TokenServer server, final int refreshPercentage) {
+        SCIMv11ConnectorConfiguration config = new SCIMv11ConnectorConfiguration();
+        config.setBaseAddress(server.getAddress());
+        config.setUsername("user");
+        config.setPassword(new GuardedString("password".toCharArray()));
+        config.setCliendId("client");
+        config.setClientSecret("secret");
+        config.setAccessTokenBaseAddress(server.getAddress() + "token");
+        config.setAccessTokenNodeId("access_token");
+        config.setAccessTokenExpiresInNodeId("expires_in");
+        config.setAccessTokenRefreshPercentage(refreshPercentage);
+        return new SCIMv11Service(config);
+    }
+
+    @Test
+    public void tokenReusedUntilExpiration() throws Exception {
+        try (TokenServer server = new TokenServer(1)) {
+            SCIMv11Service tokenService = tokenService(server, 0);
+            try {
+                assertEquals("t1", tokenService.getToken());
+                assertEquals("t1", tokenService.getToken());
+                assertEquals(1, server.tokens.get());
+
+                // renewed a little before expiration
+                Thread.sleep(950);
+                assertEquals("t2", tokenService.getToken());
+                assertEquals(2, server.tokens.get());
+            } finally {
+                tokenService.close();
+            }
+        }
+    }
+
+    @Test
+    public void tokenRenewedOnUnauthorized() throws Exception {
+        try (TokenServer server = new TokenServer(3600)) {
+            SCIMv11Service tokenService = tokenService(server, 0);
+            try {
+                server.rejected = "Bearer t1";
+                tokenService.doGet(tokenService.getWebclient("Users", null));
+
+                // sent once more, with a new token
+                assertEquals(Arrays.asList("Bearer t1", "Bearer t2"), server.authorizations);
+                assertEquals("t2", tokenService.getToken());
+
+                // at most once
+                server.rejectAll = true;
+                assertThrows(ConnectorException.class,
+                        () -> tokenService.doGet(tokenService.getWebclient("Users", null)));
+                assertEquals(Arrays.asList("Bearer t1", "Bearer t2", "Bearer t2", "Bearer t3"), server.authorizations);
+                assertEquals(3, server.tokens.get());
+            } finally {
+                tokenService.close();
+            }
+        }
+    }
+
+    @Test
+    public void tokenRefreshedInBackground() throws Exception {
+        try (TokenServer server = new TokenServer(1)) {
+            SCIMv11Service tokenService = tokenService(server, 50);
+            try {
+                assertEquals("t1", tokenService.getToken());
+
+                // refreshed after half its lifetime, with no caller waiting for it
+                Thread.sleep(750);
+                assertEquals(2, server.tokens.get());
+                assertEquals("t2", tokenService.getToken());
+
+                // and so on, as each new token reschedules refresh
+                Thread.sleep(500);
+                assertEquals(3, server.tokens.get());
+            } finally {
+                tokenService.close();
+            }
+        }
+    }
+
+    @Test
+    public void tokenRefreshRescheduled() throws Exception {
+        try (TokenServer server = new TokenServer(2)) {
+            SCIMv11Service tokenService = tokenService(server, 50);
+            try {
+                assertEquals("t1", tokenService.getToken());
+
+                Thread.sleep(500);
+                tokenService.invalidateToken("t1");
+                assertEquals("t2", tokenService.getToken());
+
+                // refresh of the first token cancelled, the one of the new token pending
+                Thread.sleep(700);
+                assertEquals(2, server.tokens.get());
+                Thread.sleep(600);
+                assertEquals(3, server.tokens.get());
+            } finally {
+                tokenService.close();
+            }
+        }
+    }
+
+    @Test
+    public void tokenRefreshStoppedOnClose() throws Exception {
+        try (TokenServer server = new TokenServer(1)) {
+            SCIMv11Service tokenService = tokenService(server, 50);
+            tokenService.getToken();
+            tokenService.close();
+
+            Thread.sleep(750);
+            assertEquals(1, server.tokens.get());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import net.tirasa.connid.bundles.scimv11.dto.User;
+import org.junit.jupiter.api.Test;
+
+public class UserCacheTests {
+
+    private static User user(final String id) {
+        User user = new User();
+        user.setId(id);
+        user.setUserName("name-" + id);
+        return user;
+    }
+
+    @Test
+    public void hitsAndMisses() {
+        UserCache cache = new UserCache(10, 60);
+        User user = user("1");
+        cache.put(user);
+        cache.put(new User());
+
+        assertSame(user, cache.get("1"));
+        assertNull(cache.get("2"));
+        // Users without id are not cached
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.invalidate("1");
+        assertNull(cache.get("1"));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() {
+        UserCache cache = new UserCache(2, 60);
+        cache.put(user("1"));
+        cache.put(user("2"));
+        cache.get("1");
+        cache.put(user("3"));
+
+        assertEquals(2, cache.size());
+        assertNull(cache.getStale("2"));
+        assertEquals("1", cache.getStale("1").getId());
+        assertEquals("3", cache.getStale("3").getId());
+    }
+
+    @Test
+    public void expiredKeptForRevalidation() throws InterruptedException {
+        UserCache cache = new UserCache(10, 1);
+        User user = user("1");
+        cache.put(user);
+        Thread.sleep(1100);
+
+        assertNull(cache.get("1"));
+        assertEquals(1, cache.getMisses());
+        User stale = cache.getStale("1");
+        assertSame(user, stale);
+
+        // reported unchanged by the service: renewed, and counted as hit rather than miss
+        cache.revalidated(stale);
+        assertEquals(0, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertSame(user, cache.get("1"));
+    }
+}
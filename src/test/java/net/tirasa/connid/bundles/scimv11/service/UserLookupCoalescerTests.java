@@ -0,0 +1,185 @@
+/**
+ * Copyright © 2018 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.scimv11.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import net.tirasa.connid.bundles.scimv11.SCIMv11ConnectorConfiguration;
+import net.tirasa.connid.bundles.scimv11.dto.User;
+import net.tirasa.connid.bundles.scimv11.utils.SCIMv11Attributes;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class UserLookupCoalescerTests {
+
+    private static final long WINDOW = 100;
+
+    /**
+     * Resolves lookups without any request, keeping track of the batches asked for.
+     */
+    private static class StubClient extends SCIMv11Client {
+
+        private final List<List<String>> batches = new CopyOnWriteArrayList<>();
+
+        private final List<String> threads = new CopyOnWriteArrayList<>();
+
+        private volatile CountDownLatch blockIds;
+
+        StubClient(final SCIMv11ConnectorConfiguration config) {
+            super(config);
+        }
+
+        private void resolve(final Collection<String> values, final UserHandler handler, final boolean byId) {
+            batches.add(new ArrayList<>(values));
+            threads.add(Thread.currentThread().getName());
+            for (String value : values) {
+                if (value.startsWith("missing")) {
+                    continue;
+                }
+                if (value.startsWith("error")) {
+                    throw new ConnectorException("Service error");
+                }
+                User user = new User();
+                user.setId(byId ? value : "id-" + value);
+                user.setUserName(byId ? "name-" + value : value.toUpperCase());
+                handler.handle(user);
+            }
+        }
+
+        @Override
+        public void getUsersById(
+                final Collection<String> userIds, final Set<String> attributesToGet, final UserHandler handler) {
+
+            if (blockIds != null) {
+                try {
+                    blockIds.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            resolve(userIds, handler, true);
+        }
+
+        @Override
+        public void getUsersByUserName(
+                final Collection<String> userNames, final Set<String> attributesToGet, final UserHandler handler) {
+
+            resolve(userNames, handler, false);
+        }
+    }
+
+    private StubClient client;
+
+    private UserLookupCoalescer coalescer;
+
+    /**
+     * Callers, each blocked until its lookup is resolved.
+     */
+    private ExecutorService callers;
+
+    @BeforeEach
+    public void setUp() {
+        SCIMv11ConnectorConfiguration config = new SCIMv11ConnectorConfiguration();
+        config.setBaseAddress("http://localhost:1/");
+        config.setUsername("user");
+        config.setPassword(new GuardedString("password".toCharArray()));
+        client = new StubClient(config);
+        coalescer = new UserLookupCoalescer(client, WINDOW);
+        callers = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        callers.shutdownNow();
+        coalescer.close();
+        client.close();
+    }
+
+    private CompletableFuture<List<User>> lookup(final String path, final String value) {
+        return CompletableFuture.supplyAsync(
+                () -> coalescer.lookup(path, value, Collections.singleton(SCIMv11Attributes.USER_ATTRIBUTE_ID)),
+                callers);
+    }
+
+    private static List<String> ids(final CompletableFuture<List<User>> result) throws Exception {
+        return result.get(5, TimeUnit.SECONDS).stream().map(User::getId).collect(Collectors.toList());
+    }
+
+    @Test
+    public void batched() throws Exception {
+        CompletableFuture<List<User>> first = lookup(SCIMv11Attributes.USER_ATTRIBUTE_ID, "1");
+        CompletableFuture<List<User>> second = lookup(SCIMv11Attributes.USER_ATTRIBUTE_ID, "2");
+        CompletableFuture<List<User>> missing = lookup(SCIMv11Attributes.USER_ATTRIBUTE_ID, "missing");
+
+        assertEquals(Collections.singletonList("1"), ids(first));
+        assertEquals(Collections.singletonList("2"), ids(second));
+        assertTrue(ids(missing).isEmpty());
+
+        assertEquals(1, client.batches.size());
+        assertEquals(3, client.batches.get(0).size());
+    }
+
+    @Test
+    public void userNameIgnoringCase() throws Exception {
+        // the stub returns userNames in upper case
+        CompletableFuture<List<User>> result = lookup(SCIMv11Attributes.USER_ATTRIBUTE_USERNAME, "john");
+        assertEquals(Collections.singletonList("id-john"), ids(result));
+    }
+
+    @Test
+    public void sentOutOfScheduler() throws Exception {
+        client.blockIds = new CountDownLatch(1);
+        try {
+            CompletableFuture<List<User>> byId = lookup(SCIMv11Attributes.USER_ATTRIBUTE_ID, "1");
+            Thread.sleep(WINDOW * 2);
+
+            // while the batch by id is still being sent, the one by userName is triggered and sent as well
+            CompletableFuture<List<User>> byUserName = lookup(SCIMv11Attributes.USER_ATTRIBUTE_USERNAME, "john");
+            assertEquals(Collections.singletonList("id-john"), ids(byUserName));
+
+            client.blockIds.countDown();
+            assertEquals(Collections.singletonList("1"), ids(byId));
+        } finally {
+            client.blockIds.countDown();
+        }
+
+        assertTrue(client.threads.stream().allMatch(thread -> thread.equals("SCIMv11 lookup batch")));
+    }
+
+    @Test
+    public void error() {
+        CompletableFuture<List<User>> result = lookup(SCIMv11Attributes.USER_ATTRIBUTE_ID, "error");
+        Exception e = assertThrows(Exception.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof ConnectorException);
+    }
+}